@@ -0,0 +1,241 @@
+package com.wpl.xrapc;
+
+import java.util.List;
+
+/**
+ * Stops requests being sent to an endpoint that is failing.
+ *
+ * The breaker counts the replies and failures of the requests sent to
+ * its endpoint over a rolling window of the last 10 seconds. A failure is
+ * a request that timed out after it was sent, or an error reply with a
+ * 5xx status. Requests that time out before leaving the client, held back
+ * by its in-flight window, don't count. Once enough requests have been
+ * made in the window, and the proportion of failures reaches the
+ * threshold, the breaker opens. Requests are then sent to another endpoint
+ * if there is one, and otherwise fail straight away, rather than each
+ * waiting for its timeout.
+ *
+ * Once the breaker has been open for a while it becomes half open, and
+ * lets a single request through as a probe. If that succeeds the breaker
+ * closes again, and otherwise it reopens.
+ * @author tomq
+ * @see XrapClient#setCircuitBreaker(double, int, long, java.util.concurrent.TimeUnit)
+ */
+public final class CircuitBreaker {
+	/**
+	 * The state of a circuit breaker.
+	 */
+	public enum State {
+		/**
+		 * Requests are sent as usual.
+		 */
+		CLOSED,
+
+		/**
+		 * Requests aren't sent.
+		 */
+		OPEN,
+
+		/**
+		 * A single request is let through, to find out whether the
+		 * endpoint has recovered.
+		 */
+		HALF_OPEN
+	}
+
+	/**
+	 * Told whenever a circuit breaker changes state.
+	 */
+	public interface Listener {
+		/**
+		 * Called on whichever thread caused the change, so must be quick.
+		 */
+		void stateChanged(CircuitBreaker breaker, State from, State to);
+	}
+
+	private static final int BUCKETS = 10;
+	private static final long BUCKET_NANOS = 1000000000L;
+
+	private final String endpoint;
+	private final double failureRate;
+	private final int minRequests;
+	private final long openNanos;
+	private final List<Listener> listeners;
+	private volatile State state = State.CLOSED;
+	private volatile long rejectedCount;
+	private volatile long openedCount;
+
+	// Guarded by this. Each bucket counts one second of the window.
+	private final long[] bucketSecond = new long[BUCKETS];
+	private final int[] successes = new int[BUCKETS];
+	private final int[] failures = new int[BUCKETS];
+	private long openedAt;
+	private boolean probing;
+
+	CircuitBreaker(String endpoint, double failureRate, int minRequests, long openNanos, List<Listener> listeners) {
+		this.endpoint = endpoint;
+		this.failureRate = failureRate;
+		this.minRequests = minRequests;
+		this.openNanos = openNanos;
+		this.listeners = listeners;
+	}
+
+	/**
+	 * Returns the endpoint guarded by the breaker, or null if unknown.
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Returns the state of the breaker.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the proportion of requests in the current window that
+	 * failed, or 0 if there were none.
+	 */
+	public synchronized double getFailureRate() {
+		long now = System.nanoTime();
+		int total = 0, failed = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			if (isCurrent(i, now)) {
+				total += successes[i] + failures[i];
+				failed += failures[i];
+			}
+		}
+		return total==0 ? 0 : (double)failed/total;
+	}
+
+	/**
+	 * Returns the number of requests the breaker has turned away.
+	 */
+	public long getRejectedRequests() {
+		return rejectedCount;
+	}
+
+	/**
+	 * Returns the number of times the breaker has opened.
+	 */
+	public long getTimesOpened() {
+		return openedCount;
+	}
+
+	/**
+	 * Decides whether a request may be sent. If the breaker is half open,
+	 * a true return makes the request the probe.
+	 */
+	boolean allowRequest() {
+		if (state==State.CLOSED) return true;
+		State from, to;
+		boolean allowed;
+		synchronized (this) {
+			from = state;
+			if (from==State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+				state = State.HALF_OPEN;
+				probing = false;
+			}
+			to = state;
+			allowed = to==State.CLOSED || (to==State.HALF_OPEN && !probing);
+			if (to==State.HALF_OPEN && allowed) probing = true;
+			if (!allowed) rejectedCount++;
+		}
+		fireStateChanged(from, to);
+		return allowed;
+	}
+
+	/**
+	 * Records that a request received a reply, other than a 5xx error.
+	 */
+	void recordSuccess() {
+		State from;
+		synchronized (this) {
+			count(successes);
+			from = state;
+			if (from!=State.HALF_OPEN) return;
+			state = State.CLOSED;
+			probing = false;
+			// Start afresh, so the failures that opened it don't reopen it
+			for (int i=0; i<BUCKETS; i++)
+				successes[i] = failures[i] = 0;
+		}
+		fireStateChanged(from, State.CLOSED);
+	}
+
+	/**
+	 * Records that a request timed out, or received a 5xx error.
+	 */
+	void recordFailure() {
+		State from;
+		synchronized (this) {
+			long now = count(failures);
+			from = state;
+			if (from==State.OPEN) return;
+			if (from==State.CLOSED && !shouldOpen(now)) return;
+			state = State.OPEN;
+			openedAt = now;
+			probing = false;
+			openedCount++;
+		}
+		fireStateChanged(from, State.OPEN);
+	}
+
+	/**
+	 * Records that a request was cancelled, so won't be heard of again.
+	 */
+	synchronized void recordCancelled() {
+		// Let another probe through, if it was the probe
+		if (state==State.HALF_OPEN) probing = false;
+	}
+
+	// Must hold this
+	private long count(int[] counts) {
+		long now = System.nanoTime();
+		long second = Math.floorDiv(now, BUCKET_NANOS);
+		int i = (int)Math.floorMod(second, (long)BUCKETS);
+		if (bucketSecond[i]!=second) {
+			bucketSecond[i] = second;
+			successes[i] = failures[i] = 0;
+		}
+		counts[i]++;
+		return now;
+	}
+
+	// Must hold this
+	private boolean isCurrent(int i, long now) {
+		return Math.floorDiv(now, BUCKET_NANOS) - bucketSecond[i] < BUCKETS;
+	}
+
+	// Must hold this
+	private boolean shouldOpen(long now) {
+		int total = 0, failed = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			if (isCurrent(i, now)) {
+				total += successes[i] + failures[i];
+				failed += failures[i];
+			}
+		}
+		return total>=minRequests && failed >= failureRate*total;
+	}
+
+	private void fireStateChanged(State from, State to) {
+		if (from==to) return;
+		for (Listener l : listeners) {
+			try {
+				l.stateChanged(this, from, to);
+			}
+			catch (RuntimeException ex) {
+				// A broken listener mustn't stop requests completing
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s failures=%.3f rejected=%d opened=%d",
+				endpoint, state, getFailureRate(), rejectedCount, openedCount);
+	}
+}
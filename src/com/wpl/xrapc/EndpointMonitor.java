@@ -0,0 +1,87 @@
+package com.wpl.xrapc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Keeps track of whether a socket is connected to its endpoint, from
+ * the events ZMQ reports through a socket monitor.
+ *
+ * The events arrive on a PAIR socket, which must only be read by one
+ * thread at a time: the reactor that owns the monitored socket, or in
+ * blocking mode a thread holding the client's lock. The state can be
+ * read by any thread.
+ * @author tomq
+ */
+final class EndpointMonitor {
+	private static final int EVENTS = ZMQ.EVENT_CONNECTED | ZMQ.EVENT_DISCONNECTED
+			| ZMQ.EVENT_RETRIED | ZMQ.EVENT_CLOSED;
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	private static final int CONNECTING = 0;
+	private static final int CONNECTED = 1;
+	private static final int DISCONNECTED = 2;
+
+	private final ZMQ.Socket events;
+	private volatile int state = CONNECTING;
+
+	private EndpointMonitor(ZMQ.Socket events) {
+		this.events = events;
+	}
+
+	/**
+	 * Starts monitoring a socket. This must be done before the socket is
+	 * connected, so that the first connection isn't missed.
+	 * @param context The context the socket was created in.
+	 * @param sock The socket to monitor.
+	 * @return The monitor, or null if the socket can't be monitored.
+	 */
+	static EndpointMonitor attach(ZMQ.Context context, ZMQ.Socket sock) {
+		String address = "inproc://xrapc-monitor-" + nextId.incrementAndGet();
+		if (!sock.monitor(address, EVENTS)) return null;
+		ZMQ.Socket events = context.socket(ZMQ.PAIR);
+		events.connect(address);
+		return new EndpointMonitor(events);
+	}
+
+	/**
+	 * Returns the socket on which events arrive, so that it can be polled.
+	 */
+	ZMQ.Socket socket() {
+		return events;
+	}
+
+	/**
+	 * Returns true if the socket is connected to its endpoint.
+	 */
+	boolean isConnected() {
+		return state==CONNECTED;
+	}
+
+	/**
+	 * Returns true if the socket has lost its connection, or failed to
+	 * make one, and hasn't yet reconnected. A socket that is still making
+	 * its first connection isn't down.
+	 */
+	boolean isDown() {
+		return state==DISCONNECTED;
+	}
+
+	/**
+	 * Reads every event that has arrived, without waiting.
+	 */
+	void drain() {
+		byte[] event;
+		while ((event = events.recv(ZMQ.DONTWAIT))!=null) {
+			// Each event starts with its 4 byte code
+			if (event.length<4) continue;
+			int code = ((event[0]&0xff)<<24) | ((event[1]&0xff)<<16) | ((event[2]&0xff)<<8) | (event[3]&0xff);
+			state = code==ZMQ.EVENT_CONNECTED ? CONNECTED : DISCONNECTED;
+		}
+	}
+
+	void close() {
+		events.close();
+	}
+}
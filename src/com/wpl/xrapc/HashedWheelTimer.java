@@ -0,0 +1,233 @@
+package com.wpl.xrapc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks once their deadline has passed, using a single thread
+ * however many deadlines are outstanding.
+ *
+ * Deadlines are hashed into the buckets of a wheel by the tick at which
+ * they fall due, and the thread visits one bucket per tick. Scheduling and
+ * cancelling are both O(1), and only hand the timeout to the timer thread
+ * through a lock free queue. The price is that a task runs up to one tick
+ * late, which is of no consequence for request timeouts.
+ *
+ * Tasks run on the timer thread, so must be quick and must not block.
+ * The thread sleeps whenever there is nothing scheduled.
+ * @author tomq
+ */
+final class HashedWheelTimer {
+	private static final long DEFAULT_TICK_MS = 10;
+	private static final int DEFAULT_BUCKETS = 512;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final MpscQueue<Timeout> added = new MpscQueue<Timeout>();
+	private final MpscQueue<Timeout> cancelled = new MpscQueue<Timeout>();
+	private final Thread worker;
+	private volatile boolean idle;
+
+	// Only used by the timer thread
+	private long startTime;
+	private long tick;
+	private int scheduled;
+
+	/**
+	 * A task waiting for its deadline.
+	 */
+	static final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;
+		private volatile int state;
+
+		// Only used by the timer thread
+		private long rounds;
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stops the task from running, unless it already has.
+		 * @return false if the task has already run or been cancelled.
+		 */
+		boolean cancel() {
+			if (!STATE.compareAndSet(this, PENDING, CANCELLED)) return false;
+			timer.cancelled.offer(this);
+			return true;
+		}
+
+		private boolean expire() {
+			return STATE.compareAndSet(this, PENDING, EXPIRED);
+		}
+	}
+
+	/**
+	 * A doubly linked list of the timeouts that fall due on the same tick
+	 * of the wheel, in any of its rotations.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			t.prev = null;
+			t.next = head;
+			if (head!=null) head.prev = t;
+			head = t;
+		}
+
+		void remove(Timeout t) {
+			if (t.prev!=null) t.prev.next = t.next;
+			else head = t.next;
+			if (t.next!=null) t.next.prev = t.prev;
+			t.prev = t.next = null;
+			t.bucket = null;
+		}
+	}
+
+	private static class SharedTimer {
+		static final HashedWheelTimer INSTANCE =
+				new HashedWheelTimer(DEFAULT_TICK_MS, TimeUnit.MILLISECONDS, DEFAULT_BUCKETS);
+	}
+
+	/**
+	 * Returns the timer shared by every client, starting it on first use.
+	 */
+	static HashedWheelTimer shared() {
+		return SharedTimer.INSTANCE;
+	}
+
+	/**
+	 * Creates a timer and starts its thread.
+	 * @param tick The interval between visits to successive buckets.
+	 * @param unit The unit of the tick.
+	 * @param buckets The number of buckets, which is rounded up to a power of 2.
+	 */
+	HashedWheelTimer(long tick, TimeUnit unit, int buckets) {
+		if (tick<=0) throw new IllegalArgumentException("tick must be positive");
+		if (buckets<1) throw new IllegalArgumentException("buckets must be positive");
+		this.tickNanos = unit.toNanos(tick);
+		int size = Integer.highestOneBit(buckets);
+		if (size<buckets) size <<= 1;
+		wheel = new Bucket[size];
+		for (int i=0; i<size; i++)
+			wheel[i] = new Bucket();
+		mask = size-1;
+		worker = new Thread(this::run, "xrapc-timer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a task to run once the deadline has passed.
+	 * May be called by any thread.
+	 * @param task The task to run on the timer thread.
+	 * @param deadline The {@link System#nanoTime()} at which to run it.
+	 * @return A timeout through which the task can be cancelled.
+	 */
+	Timeout schedule(Runnable task, long deadline) {
+		Timeout t = new Timeout(this, task, deadline);
+		added.offer(t);
+		if (idle) LockSupport.unpark(worker);
+		return t;
+	}
+
+	private void run() {
+		startTime = System.nanoTime();
+		tick = 0;
+		while (true) {
+			waitForTick();
+			removeCancelled();
+			transferAdded();
+			expire(wheel[(int)(tick & mask)]);
+			tick++;
+			if (scheduled==0) sleepUntilScheduled();
+		}
+	}
+
+	private void waitForTick() {
+		long deadline = startTime + (tick+1)*tickNanos;
+		long wait;
+		while ((wait = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(this, wait);
+	}
+
+	private void sleepUntilScheduled() {
+		idle = true;
+		// Must be checked after setting idle, so that anything scheduled
+		// after this either is seen here or unparks us.
+		while (added.isEmpty()) {
+			LockSupport.park(this);
+			Thread.interrupted();
+		}
+		idle = false;
+		// Nothing is in the wheel, so it can start turning again from here.
+		startTime = System.nanoTime();
+		tick = 0;
+		removeCancelled();
+	}
+
+	private void removeCancelled() {
+		Timeout t;
+		while ((t = cancelled.poll())!=null) {
+			// Not yet in the wheel if it was cancelled before being transferred,
+			// in which case transferAdded will skip it.
+			if (t.bucket!=null) {
+				t.bucket.remove(t);
+				scheduled--;
+			}
+		}
+	}
+
+	private void transferAdded() {
+		Timeout t;
+		while ((t = added.poll())!=null) {
+			if (t.state!=Timeout.PENDING) continue;
+			long due = (t.deadline - startTime + tickNanos - 1) / tickNanos;
+			// Anything already due runs on this tick
+			if (due<tick) due = tick;
+			t.rounds = (due - tick) / wheel.length;
+			wheel[(int)(due & mask)].add(t);
+			scheduled++;
+		}
+	}
+
+	private void expire(Bucket bucket) {
+		Timeout t = bucket.head;
+		while (t!=null) {
+			Timeout next = t.next;
+			if (t.rounds<=0) {
+				bucket.remove(t);
+				scheduled--;
+				if (t.expire()) {
+					try {
+						t.task.run();
+					}
+					catch (RuntimeException ex) {
+						// Nothing useful can be done, and the timer must keep running.
+					}
+				}
+			}
+			else {
+				t.rounds--;
+			}
+			t = next;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.wpl.xrapc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number and total size of the requests an {@link XrapClient}
+ * has in flight in reactor mode.
+ *
+ * A request takes its place in the window when it is handed to a reactor,
+ * and gives it up when the reactor finishes with it, whether by receiving
+ * the reply, timing out or failing.
+ * @author tomq
+ */
+final class InFlightWindow {
+	private static final int MIN_PURGE_AT = 16;
+
+	private final int maxRequests;
+	private final long maxBytes;
+	private final XrapClient.BackpressurePolicy policy;
+	private int requests;
+	private long bytes;
+	private final ArrayDeque<Deferred> deferred = new ArrayDeque<Deferred>();
+	// The size the queue may grow to before the requests in it that have
+	// timed out or been cancelled are dropped
+	private int purgeAt = MIN_PURGE_AT;
+
+	private static class Deferred {
+		final XrapReactor reactor;
+		final XrapReactor.PendingRequest<?> request;
+
+		Deferred(XrapReactor reactor, XrapReactor.PendingRequest<?> request) {
+			this.reactor = reactor;
+			this.request = request;
+		}
+	}
+
+	InFlightWindow(int maxRequests, long maxBytes, XrapClient.BackpressurePolicy policy) {
+		if (maxRequests<1) throw new IllegalArgumentException("maxRequests must be positive");
+		if (maxBytes<1) throw new IllegalArgumentException("maxBytes must be positive");
+		this.maxRequests = maxRequests;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+	}
+
+	/**
+	 * Submits the request to the reactor once it fits in the window. 
+	 * What happens until then depends on the policy.
+	 * @throws XrapException if the policy is FAIL and the window is full,
+	 * or the policy is BLOCK and the request times out waiting.
+	 */
+	void admit(XrapReactor reactor, XrapReactor.PendingRequest<?> p) throws XrapException, InterruptedException {
+		int size = p.frame.length;
+		p.window = this;
+		synchronized (this) {
+			switch (policy) {
+			case FAIL:
+				if (!fits(size)) 
+					throw new XrapException("In-flight window full");
+				break;
+			case BLOCK:
+				while (!fits(size)) {
+					long wait = p.deadline - System.nanoTime();
+					if (wait<=0 || p.isClaimed()) throw new XrapTimeoutException();
+					TimeUnit.NANOSECONDS.timedWait(this, wait);
+				}
+				break;
+			case QUEUE:
+				// Don't overtake anything already queued
+				if (!deferred.isEmpty() || !fits(size)) {
+					if (deferred.size()>=purgeAt) purge();
+					deferred.add(new Deferred(reactor, p));
+					return;
+				}
+				break;
+			}
+			take(size);
+		}
+		reactor.submit(p);
+	}
+
+	/**
+	 * Submits the request to the reactor only if it fits in the window
+	 * straight away, whatever the policy.
+	 * @return false if the request doesn't fit, and so hasn't been submitted.
+	 */
+	boolean tryAdmit(XrapReactor reactor, XrapReactor.PendingRequest<?> p) {
+		int size = p.frame.length;
+		synchronized (this) {
+			if (!deferred.isEmpty() || !fits(size)) return false;
+			take(size);
+		}
+		p.window = this;
+		reactor.submit(p);
+		return true;
+	}
+
+	/**
+	 * Gives up the place held by a request of the given size, sending any 
+	 * queued requests that now fit.
+	 */
+	void release(int size) {
+		List<Deferred> ready = null;
+		synchronized (this) {
+			requests--;
+			bytes -= size;
+			while (!deferred.isEmpty()) {
+				Deferred d = deferred.peek();
+				// Timed out or cancelled while queued, so never needs sending
+				if (d.request.isClaimed()) {
+					deferred.poll();
+					continue;
+				}
+				if (!fits(d.request.frame.length)) break;
+				deferred.poll();
+				take(d.request.frame.length);
+				if (ready==null) ready = new ArrayList<Deferred>();
+				ready.add(d);
+			}
+			if (policy==XrapClient.BackpressurePolicy.BLOCK)
+				notifyAll();
+		}
+		if (ready!=null) {
+			for (Deferred d : ready)
+				d.reactor.submit(d.request);
+		}
+	}
+
+	/**
+	 * Drops the queued requests that have timed out or been cancelled, 
+	 * and lets the queue grow to twice what is left before doing so again.
+	 * Must hold this.
+	 */
+	private void purge() {
+		deferred.removeIf(d -> d.request.isClaimed());
+		purgeAt = Math.max(MIN_PURGE_AT, deferred.size()*2);
+	}
+
+	private boolean fits(int size) {
+		if (requests==0) return true;
+		return requests<maxRequests && bytes+size<=maxBytes;
+	}
+
+	private void take(int size) {
+		requests++;
+		bytes += size;
+	}
+}
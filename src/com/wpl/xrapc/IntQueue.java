@@ -0,0 +1,51 @@
+package com.wpl.xrapc;
+
+import java.util.function.IntConsumer;
+
+/**
+ * An unbounded queue of primitive ints, held in a ring buffer that grows
+ * as needed, so that neither adding nor removing boxes the value.
+ *
+ * Every operation holds the queue's own monitor, so any thread may add
+ * or drain. It is only held briefly, so adding doesn't wait on whatever
+ * lock the draining thread holds.
+ * @author tomq
+ */
+final class IntQueue {
+	private static final int INITIAL_CAPACITY = 16;
+
+	// Guarded by this
+	private int[] values = new int[INITIAL_CAPACITY];
+	private int head;
+	private int size;
+
+	/**
+	 * Adds a value to the tail of the queue.
+	 */
+	synchronized void offer(int value) {
+		if (size==values.length) {
+			int[] grown = new int[values.length*2];
+			for (int i=0; i<size; i++)
+				grown[i] = values[(head+i) & (values.length-1)];
+			values = grown;
+			head = 0;
+		}
+		values[(head+size) & (values.length-1)] = value;
+		size++;
+	}
+
+	/**
+	 * Removes every value in the queue, passing each in turn to the consumer.
+	 * The consumer is called with the queue's monitor held, so must be
+	 * quick, and mustn't add to the queue.
+	 * @return The number of values removed.
+	 */
+	synchronized int drain(IntConsumer consumer) {
+		int count = size;
+		for (int i=0; i<count; i++)
+			consumer.accept(values[(head+i) & (values.length-1)]);
+		head = 0;
+		size = 0;
+		return count;
+	}
+}
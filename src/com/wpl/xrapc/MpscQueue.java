@@ -0,0 +1,67 @@
+package com.wpl.xrapc;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded lock free queue for many producer threads and a single
+ * consumer thread.
+ *
+ * Producers only ever swap the tail, a single atomic operation with no
+ * retry loop, so they never contend on a lock. The consumer walks the
+ * list from the head without any atomic operations at all. This is the
+ * well known intrusive MPSC design due to Dmitry Vyukov.
+ * @author tomq
+ */
+final class MpscQueue<E> {
+	private static final class Node<E> {
+		E value;
+		volatile Node<E> next;
+
+		Node(E value) {
+			this.value = value;
+		}
+	}
+
+	private final AtomicReference<Node<E>> tail;
+	// Only accessed by the consumer
+	private Node<E> head;
+
+	MpscQueue() {
+		Node<E> stub = new Node<E>(null);
+		head = stub;
+		tail = new AtomicReference<Node<E>>(stub);
+	}
+
+	/**
+	 * Adds an element to the queue. May be called by any thread.
+	 */
+	void offer(E value) {
+		Node<E> node = new Node<E>(value);
+		Node<E> prev = tail.getAndSet(node);
+		// Between these two lines the consumer can't see the new node, and
+		// sees the queue as ending at prev. It will be visible shortly.
+		prev.next = node;
+	}
+
+	/**
+	 * Removes the element at the head of the queue.
+	 * May only be called by the consumer thread.
+	 * @return The element, or null if the queue is empty.
+	 */
+	E poll() {
+		Node<E> next = head.next;
+		if (next==null) return null;
+		E value = next.value;
+		next.value = null;
+		head = next;
+		return value;
+	}
+
+	/**
+	 * Returns true if the queue is empty.
+	 * May only be called by the consumer thread.
+	 */
+	boolean isEmpty() {
+		return tail.get()==head;
+	}
+}
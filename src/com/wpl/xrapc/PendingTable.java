@@ -0,0 +1,338 @@
+package com.wpl.xrapc;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Correlation table mapping the IDs of in-flight requests to the state
+ * associated with them.
+ *
+ * Keys are primitive ints held in an open addressing table with linear
+ * probing, so lookups neither box the request ID nor allocate. Every entry
+ * has a deadline, after which {@link #expire(long, Consumer)} removes it
+ * as orphaned. The table holds at most a fixed number of entries; adding
+ * one more evicts the entry with the earliest deadline.
+ *
+ * The deadlines are also kept in a binary heap, so that finding the
+ * earliest doesn't mean scanning the table. Entries removed from the
+ * table are left in the heap, and skipped once they reach its top. The
+ * heap is rebuilt from the table before these could outnumber the
+ * entries still in it.
+ *
+ * This class is not thread safe. It must either be confined to a single
+ * thread, or guarded by an external lock.
+ * @author tomq
+ */
+final class PendingTable<V> {
+	private static final int INITIAL_SLOTS = 64;
+
+	private final int maxEntries;
+	private final Consumer<V> onEvicted;
+	private int[] keys;
+	private Object[] values;
+	private long[] deadlines;
+	private int mask;
+	private int size;
+	private long nextDeadline = Long.MAX_VALUE;
+	private int[] heapKeys = new int[INITIAL_SLOTS];
+	private long[] heapDeadlines = new long[INITIAL_SLOTS];
+	private int heapSize;
+
+	private volatile long orphanedCount;
+	private volatile long evictedCount;
+
+	/**
+	 * Creates an empty table.
+	 * @param maxEntries The maximum number of entries the table can hold.
+	 * @param onEvicted Called with the value of any entry evicted to make
+	 * room for a new one.
+	 */
+	PendingTable(int maxEntries, Consumer<V> onEvicted) {
+		if (maxEntries<1) throw new IllegalArgumentException("maxEntries must be positive");
+		this.maxEntries = maxEntries;
+		this.onEvicted = onEvicted;
+		allocate(INITIAL_SLOTS);
+	}
+
+	/**
+	 * Adds an entry, unless the key is already in use. If the table is full,
+	 * the entry with the earliest deadline is first evicted.
+	 * @param key The request ID.
+	 * @param value The value to associate with it, which must not be null.
+	 * @param deadline The {@link System#nanoTime()} after which the entry is orphaned.
+	 * @return false if the key is already present, in which case the table
+	 * is unchanged.
+	 */
+	boolean put(int key, V value, long deadline) {
+		if (indexOf(key)>=0) return false;
+		if (size==maxEntries)
+			evictEarliest();
+		else if (size+1 > (mask+1)/2)
+			allocate((mask+1)*2);
+		insert(key, value, deadline);
+		push(key, deadline);
+		return true;
+	}
+
+	/**
+	 * Returns the value associated with the key, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int key) {
+		int i = indexOf(key);
+		return i<0 ? null : (V)values[i];
+	}
+
+	/**
+	 * Replaces the value associated with a key already in the table,
+	 * leaving its deadline unchanged.
+	 * @return false if the key isn't present.
+	 */
+	boolean replace(int key, V value) {
+		int i = indexOf(key);
+		if (i<0) return false;
+		values[i] = value;
+		return true;
+	}
+
+	/**
+	 * Returns true if the key is present in the table.
+	 */
+	boolean contains(int key) {
+		return indexOf(key)>=0;
+	}
+
+	/**
+	 * Removes an entry.
+	 * @return The value that was associated with the key, or null if there was none.
+	 */
+	V remove(int key) {
+		int i = indexOf(key);
+		if (i<0) return null;
+		return removeAt(i);
+	}
+
+	/**
+	 * Removes every entry whose deadline has passed.
+	 * @param now The current {@link System#nanoTime()}.
+	 * @param onExpired Called with the value of each expired entry.
+	 * @return The number of entries removed.
+	 */
+	int expire(long now, Consumer<V> onExpired) {
+		if (now - nextDeadline < 0) return 0;
+		int removed = 0;
+		int i;
+		while ((i = earliest())>=0 && now - deadlines[i] >= 0) {
+			pop();
+			V value = removeAt(i);
+			removed++;
+			onExpired.accept(value);
+		}
+		i = earliest();
+		nextDeadline = i<0 ? Long.MAX_VALUE : deadlines[i];
+		orphanedCount += removed;
+		return removed;
+	}
+
+	/**
+	 * Removes every entry, passing each value to the consumer.
+	 */
+	void clear(Consumer<V> consumer) {
+		for (int i=0; i<=mask; i++) {
+			@SuppressWarnings("unchecked")
+			V value = (V)values[i];
+			if (value!=null) {
+				values[i] = null;
+				consumer.accept(value);
+			}
+		}
+		size = 0;
+		heapSize = 0;
+		nextDeadline = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the earliest deadline of any entry, or Long.MAX_VALUE
+	 * if the table is empty. This may be earlier than the true value,
+	 * but never later.
+	 */
+	long nextDeadline() {
+		return nextDeadline;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of entries removed because their deadline passed.
+	 */
+	long orphanedCount() {
+		return orphanedCount;
+	}
+
+	/**
+	 * Returns the number of entries evicted to make room for new ones.
+	 */
+	long evictedCount() {
+		return evictedCount;
+	}
+
+	private static int hash(int key) {
+		// Request IDs are usually sequential, so spread them across the table.
+		int h = key * 0x9E3779B9;
+		return h ^ (h>>>16);
+	}
+
+	private int indexOf(int key) {
+		int i = hash(key) & mask;
+		while (values[i]!=null) {
+			if (keys[i]==key) return i;
+			i = (i+1) & mask;
+		}
+		return -1;
+	}
+
+	private void insert(int key, Object value, long deadline) {
+		int i = hash(key) & mask;
+		while (values[i]!=null)
+			i = (i+1) & mask;
+		keys[i] = key;
+		values[i] = value;
+		deadlines[i] = deadline;
+		size++;
+		if (deadline - nextDeadline < 0)
+			nextDeadline = deadline;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V removeAt(int i) {
+		V value = (V)values[i];
+		values[i] = null;
+		size--;
+
+		// Shift back any following entries in the same probe sequence,
+		// so that lookups never stop early at the hole we just made.
+		int hole = i;
+		int j = (i+1) & mask;
+		while (values[j]!=null) {
+			int home = hash(keys[j]) & mask;
+			// Move the entry at j into the hole unless its home slot lies
+			// cyclically in (hole, j]
+			boolean movable = hole<=j ? (home<=hole || home>j) : (home<=hole && home>j);
+			if (movable) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				deadlines[hole] = deadlines[j];
+				values[j] = null;
+				hole = j;
+			}
+			j = (j+1) & mask;
+		}
+		return value;
+	}
+
+	private void evictEarliest() {
+		int i = earliest();
+		pop();
+		V value = removeAt(i);
+		evictedCount++;
+		onEvicted.accept(value);
+	}
+
+	/**
+	 * Returns the slot of the entry with the earliest deadline, which is
+	 * then at the top of the heap, or -1 if the table is empty.
+	 */
+	private int earliest() {
+		while (heapSize>0) {
+			int i = indexOf(heapKeys[0]);
+			// The key may have been removed, or removed and reused
+			if (i>=0 && deadlines[i]==heapDeadlines[0]) return i;
+			pop();
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds an entry that has just been inserted to the heap.
+	 */
+	private void push(int key, long deadline) {
+		if (heapSize==heapKeys.length) {
+			if (heapSize>=2*size) {
+				// Mostly removed entries, and rebuilding adds the new one
+				rebuildHeap();
+				return;
+			}
+			heapKeys = Arrays.copyOf(heapKeys, heapSize*2);
+			heapDeadlines = Arrays.copyOf(heapDeadlines, heapSize*2);
+		}
+		int i = heapSize++;
+		while (i>0) {
+			int parent = (i-1)/2;
+			if (deadline - heapDeadlines[parent] >= 0) break;
+			heapKeys[i] = heapKeys[parent];
+			heapDeadlines[i] = heapDeadlines[parent];
+			i = parent;
+		}
+		heapKeys[i] = key;
+		heapDeadlines[i] = deadline;
+	}
+
+	private void pop() {
+		heapSize--;
+		if (heapSize>0) {
+			heapKeys[0] = heapKeys[heapSize];
+			heapDeadlines[0] = heapDeadlines[heapSize];
+			siftDown(0);
+		}
+	}
+
+	private void siftDown(int i) {
+		int key = heapKeys[i];
+		long deadline = heapDeadlines[i];
+		while (true) {
+			int child = 2*i+1;
+			if (child>=heapSize) break;
+			if (child+1<heapSize && heapDeadlines[child+1] - heapDeadlines[child] < 0)
+				child++;
+			if (heapDeadlines[child] - deadline >= 0) break;
+			heapKeys[i] = heapKeys[child];
+			heapDeadlines[i] = heapDeadlines[child];
+			i = child;
+		}
+		heapKeys[i] = key;
+		heapDeadlines[i] = deadline;
+	}
+
+	private void rebuildHeap() {
+		heapSize = 0;
+		for (int i=0; i<=mask; i++) {
+			if (values[i]!=null) {
+				heapKeys[heapSize] = keys[i];
+				heapDeadlines[heapSize] = deadlines[i];
+				heapSize++;
+			}
+		}
+		for (int i=heapSize/2-1; i>=0; i--)
+			siftDown(i);
+	}
+
+	private void allocate(int slots) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		long[] oldDeadlines = deadlines;
+
+		keys = new int[slots];
+		values = new Object[slots];
+		deadlines = new long[slots];
+		mask = slots-1;
+		size = 0;
+		if (oldValues!=null) {
+			for (int i=0; i<oldValues.length; i++) {
+				if (oldValues[i]!=null)
+					insert(oldKeys[i], oldValues[i], oldDeadlines[i]);
+			}
+		}
+	}
+}
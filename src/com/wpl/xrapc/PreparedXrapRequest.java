@@ -0,0 +1,183 @@
+package com.wpl.xrapc;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * An immutable template from which identical requests can be issued
+ * over and over again.
+ *
+ * The template request is encoded once, when the PreparedXrapRequest is
+ * created. Each request issued from it is sent by copying that encoding,
+ * patching in its own etag and date if it is a conditional request. 
+ * Nothing else is encoded again, however many parameters the template has.
+ *
+ * Later changes to the template request have no effect. A
+ * PreparedXrapRequest can be shared by any number of threads.
+ * @author tomq
+ */
+public final class PreparedXrapRequest {
+	private final XrapRequest template;
+	private final XrapMethod method;
+	private final String resource;
+	private final byte[] encoded;
+	// The offset of the conditional date, which is immediately followed by
+	// the etag string, or -1 for a POST which has neither.
+	private final int conditionOffset;
+	private final int etagLength;
+	// Whether the template itself has an etag or date
+	private final boolean templateConditional;
+
+	/**
+	 * Prepares the given request.
+	 * @param template The request to issue copies of.
+	 * @throws IllegalArgumentException if the request can't be encoded.
+	 */
+	public PreparedXrapRequest(XrapRequest template) {
+		this(template, template.encode());
+	}
+
+	/**
+	 * Prepares a request that has already been encoded.
+	 * @param encoded The encoding of the template, which mustn't be 
+	 * modified afterwards.
+	 */
+	PreparedXrapRequest(XrapRequest template, byte[] encoded) {
+		this.template = template;
+		this.method = template.getMethod();
+		this.resource = template.getResource();
+		this.encoded = encoded;
+		this.conditionOffset = findConditionOffset(method, encoded);
+		this.etagLength = conditionOffset<0 ? 0 : encoded[conditionOffset+8]&0xff;
+		this.templateConditional = conditionOffset>=0 
+				&& (etagLength>0 || ByteBuffer.wrap(encoded).getLong(conditionOffset)!=0);
+	}
+
+	private static int findConditionOffset(XrapMethod method, byte[] encoded) {
+		ByteBuffer buffer = ByteBuffer.wrap(encoded);
+		int offset = ReplyDecoder.HEADER_LENGTH;
+		// Skip the resource
+		offset += 1 + (encoded[offset]&0xff);
+		switch (method) {
+		case GET:
+			// Skip the parameters
+			int count = buffer.getInt(offset);
+			offset += 4;
+			for (int i=0; i<count; i++) {
+				offset += 1 + (encoded[offset]&0xff);
+				offset += 4 + buffer.getInt(offset);
+			}
+			return offset;
+		case PUT:
+		case DELETE:
+			return offset;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the method of the prepared request.
+	 */
+	public XrapMethod getMethod() {
+		return method;
+	}
+
+	/**
+	 * Returns the resource that is the subject of the prepared request.
+	 */
+	public String getResource() {
+		return resource;
+	}
+
+	/**
+	 * Issues a new request, identical to the template.
+	 * @return A request that can be sent once.
+	 */
+	public XrapRequest newRequest() {
+		return new Issued(this, null, 0, false);
+	}
+
+	/**
+	 * Issues a new conditional request, which is identical to the template
+	 * except for its etag and date. For a GET these are the
+	 * If-None-Match and If-Modified-Since fields, and for a PUT or DELETE
+	 * they are the If-Match and If-Unmodified-Since fields.
+	 * @param etag The etag to send, or null for none.
+	 * @param date The date to send, or null for none.
+	 * @return A request that can be sent once.
+	 * @throws UnsupportedOperationException if the template is a POST,
+	 * which can't be conditional.
+	 * @throws IllegalArgumentException if the etag is too long.
+	 */
+	public XrapRequest newRequest(String etag, Date date) {
+		if (conditionOffset<0)
+			throw new UnsupportedOperationException(method + " requests can't be conditional");
+		byte[] etagBytes = XrapRequest.utf8(etag);
+		if (etagBytes!=null && etagBytes.length>255)
+			throw new IllegalArgumentException("etag is too long");
+		return new Issued(this, etagBytes, date==null ? 0 : date.getTime(), true);
+	}
+
+	/**
+	 * A request issued from a template. Its resource can't be changed.
+	 */
+	private static final class Issued extends XrapRequest {
+		private final PreparedXrapRequest prepared;
+		private final byte[] etag;
+		private final long date;
+		private final boolean conditional;
+
+		Issued(PreparedXrapRequest prepared, byte[] etag, long date, boolean conditional) {
+			super(prepared.resource, null);
+			this.prepared = prepared;
+			this.etag = etag;
+			this.date = date;
+			this.conditional = conditional;
+		}
+
+		@Override
+		public void setResource(String resource) {
+			throw new UnsupportedOperationException("The resource of a prepared request can't be changed");
+		}
+
+		@Override
+		public XrapMethod getMethod() {
+			return prepared.method;
+		}
+
+		@Override
+		boolean isConditional() {
+			if (!conditional) return prepared.templateConditional;
+			return etag!=null || date!=0;
+		}
+
+		@Override
+		int encodedSize() {
+			if (!conditional) return prepared.encoded.length;
+			return prepared.encoded.length - prepared.etagLength + (etag==null ? 0 : etag.length);
+		}
+
+		@Override
+		void encode(ByteBuffer buffer) {
+			byte[] encoded = prepared.encoded;
+			if (!conditional) {
+				buffer.put(encoded);
+			}
+			else {
+				int offset = prepared.conditionOffset;
+				buffer.put(encoded, 0, offset);
+				buffer.putLong(date);
+				putString(buffer, etag);
+				int rest = offset + 8 + 1 + prepared.etagLength;
+				buffer.put(encoded, rest, encoded.length - rest);
+			}
+		}
+
+		@Override
+		XrapReply parseResponse(ByteBuffer response) throws XrapException {
+			// Decoding a reply doesn't depend on anything but the type of request.
+			return prepared.template.parseResponse(response);
+		}
+	}
+}
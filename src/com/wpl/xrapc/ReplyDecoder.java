@@ -0,0 +1,100 @@
+package com.wpl.xrapc;
+
+/**
+ * Reads the fixed header that starts every XRAP reply.
+ *
+ * Every reply begins with the 2 byte signature, the command byte and
+ * the 4 byte request ID, in that order. Reading these directly from
+ * the frame lets a reply be routed to the request that owns it before
+ * any of the body or metadata is decoded. The full decode is then
+ * performed by the owning request's parseResponse.
+ * @author tomq
+ */
+final class ReplyDecoder {
+	static final int COMMAND_OFFSET = 2;
+	static final int REQUEST_ID_OFFSET = 3;
+	static final int HEADER_LENGTH = 7;
+
+	private ReplyDecoder() {}
+
+	/**
+	 * Checks that the frame is long enough to hold a reply header, and
+	 * that it starts with the XRAP signature.
+	 * @param frame The received reply frame.
+	 * @throws XrapException if the frame isn't an XRAP reply.
+	 */
+	static void checkHeader(byte[] frame) throws XrapException {
+		if (frame.length<HEADER_LENGTH)
+			throw new XrapException(String.format("Truncated reply of %d bytes", frame.length));
+		short signature = (short)(((frame[0]&0xff)<<8) | (frame[1]&0xff));
+		if (signature!=Constants.SIGNATURE)
+			throw new InvalidSignatureException(signature);
+	}
+
+	/**
+	 * Returns the command byte of the reply, without decoding the rest of it.
+	 * The frame must already have been checked with {@link #checkHeader(byte[])}.
+	 */
+	static int peekCommand(byte[] frame) {
+		return frame[COMMAND_OFFSET];
+	}
+
+	/**
+	 * Returns true if the command is one that a server sends in reply
+	 * to a request.
+	 */
+	static boolean isReplyCommand(int command) {
+		switch (command) {
+		case Constants.POST_OK_COMMAND:
+		case Constants.GET_OK_COMMAND:
+		case Constants.GET_EMPTY_COMMAND:
+		case Constants.PUT_OK_COMMAND:
+		case Constants.DELETE_OK_COMMAND:
+		case Constants.ERROR_COMMAND:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns true if the command is one that a server may send in reply
+	 * to a request using the given method.
+	 */
+	static boolean isReplyTo(XrapMethod method, int command) {
+		if (command==Constants.ERROR_COMMAND) return true;
+		switch (method) {
+		case GET:
+			return command==Constants.GET_OK_COMMAND || command==Constants.GET_EMPTY_COMMAND;
+		case PUT:
+			return command==Constants.PUT_OK_COMMAND;
+		case POST:
+			return command==Constants.POST_OK_COMMAND;
+		case DELETE:
+			return command==Constants.DELETE_OK_COMMAND;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the status code of the reply, without decoding the rest of
+	 * it, or -1 if the frame is too short to hold one.
+	 * The frame must already have been checked with {@link #checkHeader(byte[])}.
+	 */
+	static int peekStatusCode(byte[] frame) {
+		if (frame.length<HEADER_LENGTH+2) return -1;
+		return ((frame[HEADER_LENGTH]&0xff)<<8) | (frame[HEADER_LENGTH+1]&0xff);
+	}
+
+	/**
+	 * Returns the request ID of the reply, without decoding the rest of it.
+	 * The frame must already have been checked with {@link #checkHeader(byte[])}.
+	 */
+	static int peekRequestId(byte[] frame) {
+		return ((frame[REQUEST_ID_OFFSET]&0xff)<<24)
+				| ((frame[REQUEST_ID_OFFSET+1]&0xff)<<16)
+				| ((frame[REQUEST_ID_OFFSET+2]&0xff)<<8)
+				| (frame[REQUEST_ID_OFFSET+3]&0xff);
+	}
+}
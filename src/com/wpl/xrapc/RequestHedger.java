@@ -0,0 +1,98 @@
+package com.wpl.xrapc;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a GET is slow enough to be worth sending again, and
+ * whether there is budget left to do so.
+ *
+ * The time after which a request is hedged is the given percentile of the
+ * latencies of recent GETs, recalculated every so often from a ring of the
+ * most recent samples. Until enough samples have been seen, nothing is hedged.
+ *
+ * Hedges are paid for from a {@link TokenBucket}, which every GET adds a 
+ * fraction of a token to, so hedges can never be more than that fraction 
+ * of requests.
+ * @author tomq
+ */
+final class RequestHedger {
+	private static final int SAMPLES = 1024;
+	private static final int MIN_SAMPLES = 100;
+	private static final int RECALCULATE_EVERY = 128;
+
+	private final double percentile;
+	private final TokenBucket budget;
+	private final long[] samples = new long[SAMPLES];
+	// A long, so that it never wraps round to fewer than MIN_SAMPLES
+	private final AtomicLong sampleCount = new AtomicLong();
+	private volatile long delay = -1;
+
+	/**
+	 * @param percentile The percentile of recent latency after which
+	 * a request is hedged, between 0 and 1.
+	 * @param budget The most hedges that can be sent, as a fraction of requests.
+	 */
+	RequestHedger(double percentile, double budget) {
+		if (percentile<=0 || percentile>=1)
+			throw new IllegalArgumentException("percentile must be between 0 and 1");
+		this.percentile = percentile;
+		this.budget = new TokenBucket(budget);
+	}
+
+	/**
+	 * Records that a request is being made, adding to the budget.
+	 */
+	void deposit() {
+		budget.deposit();
+	}
+
+	/**
+	 * Takes the cost of a hedge from the budget.
+	 * @return false if there isn't enough budget left.
+	 */
+	boolean tryWithdraw() {
+		return budget.tryWithdraw();
+	}
+
+	/**
+	 * Gives back the cost of a hedge that wasn't sent after all.
+	 */
+	void refund() {
+		budget.refund();
+	}
+
+	/**
+	 * Returns how long to wait for a reply before hedging, in nanoseconds,
+	 * or -1 if there are too few samples to tell yet.
+	 */
+	long delay() {
+		return delay;
+	}
+
+	/**
+	 * Returns the number of hedges sent.
+	 */
+	long hedgedCount() {
+		return budget.withdrawnCount();
+	}
+
+	/**
+	 * Records the time taken for a reply to arrive.
+	 */
+	void record(long nanos) {
+		long n = sampleCount.getAndIncrement();
+		samples[(int)(n & (SAMPLES-1))] = nanos;
+		n++;
+		if (n>=MIN_SAMPLES && (n % RECALCULATE_EVERY==0 || n==MIN_SAMPLES))
+			recalculate((int)Math.min(n, SAMPLES));
+	}
+
+	private void recalculate(int count) {
+		// Other threads may be recording at the same time, which only
+		// means a sample or two may be missed or counted twice.
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		delay = sorted[(int)(percentile*(count-1))];
+	}
+}
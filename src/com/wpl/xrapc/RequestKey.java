@@ -0,0 +1,41 @@
+package com.wpl.xrapc;
+
+import java.util.Arrays;
+
+/**
+ * Identifies a request by its encoding, less its request ID. For a GET
+ * this covers its resource, parameters, content type and conditions, so
+ * two GETs with equal keys are bound to get the same reply.
+ * @author tomq
+ */
+final class RequestKey {
+	final String resource;
+	final byte[] encoded;
+	private final int hash;
+
+	private RequestKey(String resource, byte[] encoded) {
+		this.resource = resource;
+		this.encoded = encoded;
+		this.hash = Arrays.hashCode(encoded);
+	}
+
+	/**
+	 * Encodes the request to make its key. The encoding can be used to 
+	 * send the request, through a {@link PreparedXrapRequest}.
+	 */
+	static RequestKey of(XrapRequest request) {
+		byte[] encoded = request.encode();
+		XrapRequest.patchRequestId(encoded, 0);
+		return new RequestKey(request.getResource(), encoded);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof RequestKey && Arrays.equals(encoded, ((RequestKey)o).encoded);
+	}
+}
@@ -0,0 +1,112 @@
+package com.wpl.xrapc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines which requests an {@link XrapClient} sends again when they
+ * time out, and how long it waits before doing so.
+ *
+ * GET, PUT and DELETE requests are idempotent, so are retried. POST
+ * requests are only retried if {@link #retryingPosts()} is used, since the
+ * server may have acted on a request whose reply was lost.
+ *
+ * Every attempt shares the deadline of the original request, rather than
+ * each starting afresh, so retrying never makes a caller wait longer than
+ * the client's timeout. Each attempt but the last times out once 3/4 of
+ * the time left has passed, leaving the rest for the retries, and the last
+ * has all the time left. So with 3 attempts the first has 3/4 of the
+ * timeout, rather than the whole of it as without retries. Between
+ * attempts the client waits for a random time of up to the backoff,
+ * which doubles on each attempt, so that callers who failed together
+ * don't all retry together.
+ *
+ * Retries are further limited to a fraction of requests (10% by default),
+ * so that when a server is overloaded, retries don't add to its load.
+ * A RetryPolicy is immutable.
+ * @author tomq
+ */
+public final class RetryPolicy {
+	/**
+	 * The default fraction of requests that may be retried.
+	 */
+	public static final double DEFAULT_BUDGET = 0.1;
+
+	private final int maxAttempts;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private final boolean retryPosts;
+	private final double budget;
+
+	/**
+	 * Creates a policy that retries idempotent requests.
+	 * @param maxAttempts The most times a request is sent, including the first.
+	 * @param initialBackoff The longest wait before the first retry.
+	 * @param maxBackoff The longest wait before any retry.
+	 * @param unit The unit of both backoffs.
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+		this(maxAttempts, unit.toNanos(initialBackoff), unit.toNanos(maxBackoff), false, DEFAULT_BUDGET);
+	}
+
+	private RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, boolean retryPosts, double budget) {
+		if (maxAttempts<1) throw new IllegalArgumentException("maxAttempts must be positive");
+		if (initialBackoff<0 || maxBackoff<initialBackoff)
+			throw new IllegalArgumentException("Backoffs must satisfy 0 <= initialBackoff <= maxBackoff");
+		if (budget<=0 || budget>1) throw new IllegalArgumentException("budget must be between 0 and 1");
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.retryPosts = retryPosts;
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns a copy of this policy that also retries POST requests.
+	 */
+	public RetryPolicy retryingPosts() {
+		return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, true, budget);
+	}
+
+	/**
+	 * Returns a copy of this policy with a different retry budget.
+	 * @param budget The most retries that can be made, as a fraction of
+	 * requests, between 0 and 1.
+	 */
+	public RetryPolicy withBudget(double budget) {
+		return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, retryPosts, budget);
+	}
+
+	/**
+	 * Returns the most times a request is sent, including the first.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Returns the most retries that can be made, as a fraction of requests.
+	 */
+	public double getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns true if requests of the given method are retried.
+	 */
+	public boolean retries(XrapMethod method) {
+		return maxAttempts>1 && (method!=XrapMethod.POST || retryPosts);
+	}
+
+	/**
+	 * Returns a random wait before the given retry, in nanoseconds.
+	 * @param retry 1 for the first retry, 2 for the second and so on.
+	 */
+	long backoff(int retry) {
+		long limit = initialBackoff;
+		for (int i=1; i<retry && limit<maxBackoff; i++)
+			limit *= 2;
+		limit = Math.min(limit, maxBackoff);
+		return limit==0 ? 0 : ThreadLocalRandom.current().nextLong(limit+1);
+	}
+}
@@ -0,0 +1,236 @@
+package com.wpl.xrapc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one request between every caller that makes an identical GET
+ * while it is in flight, so that a burst of callers wanting the same
+ * resource costs the server a single request.
+ *
+ * The first caller starts a flight, which later callers join until its
+ * reply arrives. Each caller decodes the reply for itself, and keeps its
+ * own deadline and cancellation. Cancelling leaves the flight, and only
+ * once every caller has left is the request itself cancelled. Since the
+ * request is sent with the deadline of the caller who started the flight,
+ * a caller whose own deadline hasn't passed when it times out starts or
+ * joins another flight.
+ * @author tomq
+ */
+final class SingleFlight {
+	/**
+	 * Sends the request for a flight.
+	 */
+	interface Sender {
+		CompletableFuture<byte[]> send(XrapRequest request, XrapReactor.Decoder<byte[]> decoder, long deadline)
+				throws XrapException;
+	}
+
+	private final ConcurrentHashMap<RequestKey, Flight> flights = new ConcurrentHashMap<RequestKey, Flight>();
+	private final HashedWheelTimer timer;
+	private final Sender sender;
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	SingleFlight(HashedWheelTimer timer, Sender sender) {
+		this.timer = timer;
+		this.sender = sender;
+	}
+
+	/**
+	 * Joins the flight of an identical request, or starts one.
+	 * @param request The GET to send.
+	 * @param shared The decoder that turns the reply into the frame each
+	 * caller decodes, which is only run once for the whole flight.
+	 * @param decoder The decoder of this caller.
+	 * @param deadline The {@link System#nanoTime()} after which this caller
+	 * no longer wants the reply.
+	 * @throws XrapException if this caller had to start a flight, and its
+	 * request couldn't be sent.
+	 */
+	<R> CompletableFuture<R> join(XrapRequest request, XrapReactor.Decoder<byte[]> shared,
+			XrapReactor.Decoder<R> decoder, long deadline) throws XrapException {
+		Caller<R> c = new Caller<R>(RequestKey.of(request), request, shared, decoder, deadline);
+		c.board();
+		return c;
+	}
+
+	/**
+	 * Returns the number of requests that joined a flight, rather than
+	 * being sent.
+	 */
+	long coalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * A request in flight, and the callers waiting for its reply.
+	 */
+	private final class Flight {
+		private final RequestKey key;
+		private final XrapReactor.Decoder<byte[]> decoder;
+		// Guarded by this
+		private final List<Caller<?>> callers = new ArrayList<Caller<?>>(2);
+		private boolean closed;
+		private CompletableFuture<byte[]> request;
+
+		Flight(RequestKey key, XrapReactor.Decoder<byte[]> decoder) {
+			this.key = key;
+			this.decoder = decoder;
+		}
+
+		/**
+		 * Adds a caller, unless the flight has already landed.
+		 */
+		synchronized boolean add(Caller<?> c) {
+			if (closed) return false;
+			callers.add(c);
+			return true;
+		}
+
+		void start(XrapRequest template, long deadline) throws XrapException {
+			CompletableFuture<byte[]> f;
+			try {
+				f = sender.send(new PreparedXrapRequest(template, key.encoded).newRequest(), decoder, deadline);
+			}
+			catch (XrapException | RuntimeException ex) {
+				land(null, ex);
+				throw ex;
+			}
+			boolean abandoned;
+			synchronized (this) {
+				request = f;
+				abandoned = closed;
+			}
+			// Everyone left before the request was sent
+			if (abandoned) f.cancel(false);
+			f.whenComplete(this::land);
+		}
+
+		private void land(byte[] frame, Throwable ex) {
+			List<Caller<?>> landed;
+			synchronized (this) {
+				closed = true;
+				landed = new ArrayList<Caller<?>>(callers);
+				callers.clear();
+			}
+			flights.remove(key, this);
+			for (Caller<?> c : landed)
+				c.settle(frame, ex);
+		}
+
+		void leave(Caller<?> c) {
+			CompletableFuture<byte[]> f;
+			synchronized (this) {
+				if (!callers.remove(c) || !callers.isEmpty()) return;
+				closed = true;
+				f = request;
+			}
+			flights.remove(key, this);
+			if (f!=null) f.cancel(false);
+		}
+	}
+
+	/**
+	 * The future of one caller.
+	 */
+	private final class Caller<R> extends CompletableFuture<R> {
+		private final RequestKey key;
+		private final XrapRequest request;
+		private final XrapReactor.Decoder<byte[]> shared;
+		private final XrapReactor.Decoder<R> decoder;
+		private final long deadline;
+		private final HashedWheelTimer.Timeout timeout;
+		private volatile Flight flight;
+
+		Caller(RequestKey key, XrapRequest request, XrapReactor.Decoder<byte[]> shared,
+				XrapReactor.Decoder<R> decoder, long deadline) {
+			this.key = key;
+			this.request = request;
+			this.shared = shared;
+			this.decoder = decoder;
+			this.deadline = deadline;
+			// The timer thread mustn't run dependent actions itself.
+			this.timeout = timer.schedule(() -> ForkJoinPool.commonPool().execute(() -> {
+				if (completeExceptionally(new XrapTimeoutException())) leave();
+			}), deadline);
+		}
+
+		void board() throws XrapException {
+			while (true) {
+				Flight f = flights.get(key);
+				if (f!=null) {
+					if (f.add(this)) {
+						flight = f;
+						coalescedCount.incrementAndGet();
+						break;
+					}
+					// Landed, but not yet removed
+					flights.remove(key, f);
+					continue;
+				}
+				f = new Flight(key, shared);
+				f.add(this);
+				if (flights.putIfAbsent(key, f)!=null) continue;
+				flight = f;
+				f.start(request, deadline);
+				break;
+			}
+			// Lost a race with being cancelled, which didn't see the flight
+			if (isDone()) leave();
+		}
+
+		void settle(byte[] frame, Throwable ex) {
+			if (isDone()) return;
+			if (ex==null) {
+				try {
+					complete(decoder.decode(request, frame));
+				}
+				catch (XrapException e) {
+					completeExceptionally(e);
+				}
+				catch (RuntimeException e) {
+					completeExceptionally(new XrapException("Malformed reply", e));
+				}
+			}
+			else {
+				Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+				if (cause instanceof XrapTimeoutException && System.nanoTime() - deadline < 0) {
+					ForkJoinPool.commonPool().execute(this::rejoin);
+					return;
+				}
+				completeExceptionally(cause);
+			}
+			timeout.cancel();
+		}
+
+		private void rejoin() {
+			if (isDone()) return;
+			try {
+				board();
+			}
+			catch (XrapException | RuntimeException ex) {
+				completeExceptionally(ex);
+			}
+		}
+
+		private void leave() {
+			Flight f = flight;
+			if (f!=null) f.leave(this);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				timeout.cancel();
+				leave();
+			}
+			return cancelled;
+		}
+	}
+}
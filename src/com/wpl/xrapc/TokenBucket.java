@@ -0,0 +1,70 @@
+package com.wpl.xrapc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits something extra, like a retry or a hedge, to a fraction of 
+ * requests. Every request deposits that fraction of a token, and each 
+ * extra takes a whole one. The bucket starts full, but only holds a few 
+ * tokens, so unused allowance can't build up into a burst later.
+ * @author tomq
+ */
+final class TokenBucket {
+	private static final long TOKEN = 1000000;
+	private static final long MAX_TOKENS = 10*TOKEN;
+
+	private final long deposit;
+	private final AtomicLong tokens = new AtomicLong(MAX_TOKENS);
+	private final AtomicLong withdrawn = new AtomicLong();
+
+	/**
+	 * @param ratio The fraction of a token deposited by each request,
+	 * between 0 and 1.
+	 */
+	TokenBucket(double ratio) {
+		if (ratio<=0 || ratio>1)
+			throw new IllegalArgumentException("ratio must be between 0 and 1");
+		this.deposit = (long)(ratio*TOKEN);
+	}
+
+	/**
+	 * Records that a request is being made.
+	 */
+	void deposit() {
+		long t;
+		do {
+			t = tokens.get();
+			if (t>=MAX_TOKENS) return;
+		} while (!tokens.compareAndSet(t, Math.min(t+deposit, MAX_TOKENS)));
+	}
+
+	/**
+	 * Takes a token, if there is one.
+	 * @return false if there isn't.
+	 */
+	boolean tryWithdraw() {
+		long t;
+		do {
+			t = tokens.get();
+			if (t<TOKEN) return false;
+		} while (!tokens.compareAndSet(t, t-TOKEN));
+		withdrawn.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Gives back a token taken by {@link #tryWithdraw()} for an extra
+	 * that wasn't made after all, so it isn't counted.
+	 */
+	void refund() {
+		tokens.addAndGet(TOKEN);
+		withdrawn.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of tokens taken so far.
+	 */
+	long withdrawnCount() {
+		return withdrawn.get();
+	}
+}
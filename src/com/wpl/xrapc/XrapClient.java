@@ -1,14 +1,23 @@
 package com.wpl.xrapc;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -17,15 +26,141 @@ import org.zeromq.ZMQ;
 /**
  * A general purpose client for the XRAP protocol.
  * 
+ * A client can be striped across several DEALER sockets connected to the 
+ * same endpoint, so that encoding, sending and receiving are spread over
+ * several threads. Each socket is then owned by its own reactor thread 
+ * (see {@link #enableReactor(Executor)}), and each request is sent on one 
+ * of them according to the {@link StripePolicy}.
+ * 
+ * A client can also be connected to several endpoints serving the same 
+ * resources, in which case it runs in reactor mode with a socket per 
+ * endpoint, and the StripePolicy balances requests between them. 
+ * Endpoints can be added and removed while requests are in flight 
+ * (see {@link #addEndpoint(String)} and {@link #removeEndpoint(String)}).
+ * 
  * For details, see http://rfc.zeromq.org/spec:40
  * @author tomq
  */
 public class XrapClient {
-	private ZMQ.Socket sock;
+	private final ZMQ.Socket sock;
+	private final ZMQ.Socket[] socks;
+	// The endpoint each of socks is connected to, or null if unknown
+	private final String[] endpoints;
+	// The monitor of each of socks, or null if it isn't monitored
+	private final EndpointMonitor[] monitors;
+	// Guarded by lock. Created when first needed if the client wasn't given one.
+	private ZMQ.Context context;
+	// Guarded by lock. The sockets the client has created, and so must close, 
+	// with their monitors.
+	private final Map<ZMQ.Socket, EndpointMonitor> ownedSockets = new IdentityHashMap<ZMQ.Socket, EndpointMonitor>();
+	// Guarded by lock. Reactors of removed endpoints, which may still be draining.
+	// Once one has stopped, its counters are added to the client's own, and 
+	// it is dropped.
+	private final List<XrapReactor> retired = new ArrayList<XrapReactor>();
+	private long retiredOrphanedCount;
+	private long retiredEvictedCount;
+	private Executor callbackExecutor;
+	private volatile StripePolicy stripePolicy = StripePolicy.THREAD_AFFINITY;
+	private volatile InFlightWindow window;
+	private volatile RequestHedger hedger;
+	private volatile RetryPolicy retryPolicy;
+	private volatile XrapResponseCache responseCache;
+	private volatile SingleFlight singleFlight;
+	// Guarded by lock. Kept when coalescing is disabled, for its statistics.
+	private SingleFlight coalescer;
+	// Shared by every request made under the current retry policy
+	private volatile TokenBucket retryBudget;
+	// Guarded by lock. The settings for each endpoint's circuit breaker, 
+	// which is disabled while the failure rate is 0.
+	private double breakerFailureRate;
+	private int breakerMinRequests;
+	private long breakerOpenNanos;
+	private final List<CircuitBreaker.Listener> breakerListeners = new CopyOnWriteArrayList<CircuitBreaker.Listener>();
 	private long receiveTimeout = 30;
 	private TimeUnit receiveTimeoutUnit = TimeUnit.SECONDS;
-	private Map<Integer, XrapReply> responseCache = new ConcurrentHashMap<Integer, XrapReply>();
+	private int maxPendingRequests = DEFAULT_MAX_PENDING_REQUESTS;
 	private Lock lock = new ReentrantLock(); 
+	private volatile XrapReactor[] reactors;
+	private final AtomicInteger nextStripe = new AtomicInteger();
+	private final HashedWheelTimer timer = HashedWheelTimer.shared();
+	
+	// Guarded by lock. Maps the ID of each request sent by sendOnly to either 
+	// AWAITING_REPLY, or the undecoded reply once it has been received.
+	private PendingTable<Object> pendingReplies = newPendingReplies(maxPendingRequests);
+	private long lateReplyCount;
+	// Guarded by lock. The ID of the next request sent by sendOnly. IDs still
+	// in pendingReplies are skipped, so the sequence can wrap around safely.
+	private int nextRequestId = 1;
+	private long cancelledCount;
+	// The IDs of cancelled requests, to be removed from pendingReplies by
+	// the next thread to take the lock.
+	private final IntQueue cancelledReplies = new IntQueue();
+	private static final Object AWAITING_REPLY = new Object();
+	
+	/**
+	 * The default maximum number of requests that can await a reply.
+	 */
+	public static final int DEFAULT_MAX_PENDING_REQUESTS = 65536;
+	
+	/**
+	 * The longest interval, in milliseconds, between attempts to reconnect
+	 * to an endpoint that can't be reached.
+	 */
+	private static final long RECONNECT_INTERVAL_MAX = 5000;
+
+	/**
+	 * Determines which of a striped client's sockets a request is sent on.
+	 */
+	public enum StripePolicy {
+		/**
+		 * Each calling thread always uses the same socket.
+		 */
+		THREAD_AFFINITY,
+		
+		/**
+		 * Each request uses the socket with the fewest requests awaiting a reply.
+		 */
+		LEAST_OUTSTANDING,
+		
+		/**
+		 * Requests use each socket in turn.
+		 */
+		ROUND_ROBIN,
+		
+		/**
+		 * Each request picks two sockets at random, and uses whichever 
+		 * looks quicker, judging by how long its recent replies have taken
+		 * and how many requests are awaiting a reply. This steers requests 
+		 * away from a slow endpoint without herding them all onto the 
+		 * quickest one.
+		 */
+		POWER_OF_TWO_CHOICES
+	}
+
+	/**
+	 * Determines what happens to a request made in reactor mode while the 
+	 * in-flight window is full.
+	 * @see XrapClient#setInFlightWindow(int, long, BackpressurePolicy)
+	 */
+	public enum BackpressurePolicy {
+		/**
+		 * The caller blocks until there is room in the window, or until 
+		 * the request times out.
+		 */
+		BLOCK,
+		
+		/**
+		 * The request fails immediately with an {@link XrapException}.
+		 */
+		FAIL,
+		
+		/**
+		 * The request is queued without being sent, and its future returned 
+		 * straight away. Queued requests are sent in order as room becomes 
+		 * available.
+		 */
+		QUEUE
+	}
 
 	/**
 	 * Creates a new XrapClient object using a newly created ZMQ context.
@@ -33,7 +168,7 @@ public class XrapClient {
 	 * tcp://hostname/port (see http://api.zeromq.org/4-0:zmq-tcp)
 	 */
 	public XrapClient(String endpoint) {
-		this(openAndConnect(ZMQ.context(1), endpoint));
+		this(ZMQ.context(1), endpoint);
 	}
 	
 	/**
@@ -43,7 +178,54 @@ public class XrapClient {
 	 * tcp://hostname/port (see http://api.zeromq.org/4-0:zmq-tcp)
 	 */
 	public XrapClient(ZMQ.Context zmqContext, String endpoint) {
-		this(openAndConnect(zmqContext, endpoint));
+		this(new ZMQ.Context[] { zmqContext }, new String[] { endpoint });
+	}
+	
+	/**
+	 * Creates a new XrapClient object connected to several endpoints, 
+	 * using a newly created ZMQ context. 
+	 * @param endpoints The endpoints to connect to, each of the form
+	 * tcp://hostname/port. Requests are balanced between them according 
+	 * to the {@link StripePolicy}. 
+	 */
+	public XrapClient(Collection<String> endpoints) {
+		this(ZMQ.context(1), endpoints);
+	}
+	
+	/**
+	 * Creates a new XrapClient object connected to several endpoints.
+	 * If there is more than one endpoint, the client always runs in reactor mode.
+	 * @param zmqContext A ZMQ.Context in which to create the ZMQ sockets.
+	 * @param endpoints The endpoints to connect to, each of the form
+	 * tcp://hostname/port. Requests are balanced between them according 
+	 * to the {@link StripePolicy}. 
+	 */
+	public XrapClient(ZMQ.Context zmqContext, Collection<String> endpoints) {
+		this(new ZMQ.Context[] { zmqContext }, endpoints.toArray(new String[endpoints.size()]));
+	}
+
+	/**
+	 * Creates a new striped XrapClient object using a newly created ZMQ context,
+	 * with one I/O thread per socket.
+	 * @param endpoint The endpoint to connect to. This should be of the form
+	 * tcp://hostname/port (see http://api.zeromq.org/4-0:zmq-tcp)
+	 * @param socketCount The number of sockets to connect to the endpoint.
+	 */
+	public XrapClient(String endpoint, int socketCount) {
+		this(new ZMQ.Context[] { ZMQ.context(socketCount) }, endpoint, socketCount);
+	}
+	
+	/**
+	 * Creates a new striped XrapClient object. 
+	 * If there is more than one socket, the client always runs in reactor mode.
+	 * @param zmqContexts The ZMQ contexts in which to create the sockets. 
+	 * The sockets are shared out between them in turn.
+	 * @param endpoint The endpoint to connect to. This should be of the form
+	 * tcp://hostname/port (see http://api.zeromq.org/4-0:zmq-tcp)
+	 * @param socketCount The number of sockets to connect to the endpoint.
+	 */
+	public XrapClient(ZMQ.Context[] zmqContexts, String endpoint, int socketCount) {
+		this(zmqContexts, repeat(endpoint, socketCount));
 	}
 
 	/**
@@ -51,7 +233,39 @@ public class XrapClient {
 	 * @param sock An existing zmq socket to use.
 	 */
 	public XrapClient(ZMQ.Socket sock) {
+		this.socks = new ZMQ.Socket[] { sock };
 		this.sock = sock;
+		this.endpoints = new String[1];
+		this.monitors = new EndpointMonitor[1];
+	}
+	
+	/**
+	 * Opens a socket to each endpoint, sharing them out between the contexts in turn.
+	 */
+	private XrapClient(ZMQ.Context[] zmqContexts, String[] endpoints) {
+		if (endpoints.length==0) throw new IllegalArgumentException("No endpoints");
+		this.context = zmqContexts[0];
+		this.endpoints = endpoints;
+		this.socks = new ZMQ.Socket[endpoints.length];
+		this.monitors = new EndpointMonitor[endpoints.length];
+		for (int i=0; i<endpoints.length; i++) {
+			ZMQ.Context c = zmqContexts[i % zmqContexts.length];
+			socks[i] = open(c);
+			monitors[i] = EndpointMonitor.attach(c, socks[i]);
+			socks[i].connect(endpoints[i]);
+			ownedSockets.put(socks[i], monitors[i]);
+		}
+		this.sock = socks[0];
+	}
+	
+	/**
+	 * Sets how requests are shared out between the sockets of a striped client,
+	 * or the endpoints of a client connected to several.
+	 * This is {@link StripePolicy#THREAD_AFFINITY} by default.
+	 * @param policy The new policy.
+	 */
+	public void setStripePolicy(StripePolicy policy) {
+		this.stripePolicy = policy;
 	}
 	
 	/**
@@ -74,6 +288,505 @@ public class XrapClient {
 		this.receiveTimeoutUnit = units;
 	}
 	
+	/**
+	 * Sets the maximum number of requests that can be awaiting a reply at 
+	 * any one time. If this is exceeded, the request with the earliest
+	 * deadline is evicted, and fails. 
+	 * This must be called before any requests are made.
+	 * @param max The new maximum. This is 65536 by default.
+	 */
+	public void setMaxPendingRequests(int max) {
+		lock.lock();
+		try {
+			pendingReplies = newPendingReplies(max);
+			maxPendingRequests = max;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Limits the requests that can be in flight at once in reactor mode,
+	 * that is, sent but without a reply yet. This allows thousands of 
+	 * requests to be pipelined over a connection while bounding the memory 
+	 * used. By default there is no limit.
+	 * A single request larger than maxBytes is allowed when nothing else
+	 * is in flight.
+	 * @param maxRequests The maximum number of requests in flight.
+	 * @param maxBytes The maximum total encoded size of the requests in flight.
+	 * @param policy What to do with a request that doesn't fit in the window.
+	 */
+	public void setInFlightWindow(int maxRequests, long maxBytes, BackpressurePolicy policy) {
+		this.window = new InFlightWindow(maxRequests, maxBytes, policy);
+	}
+	
+	/**
+	 * Enables hedging of GET requests in reactor mode, to cut the latency
+	 * of the slowest requests. If the reply to a GET hasn't arrived by the 
+	 * given percentile of the latency of recent GETs, the request is sent
+	 * again on another socket, which is another endpoint if the client has 
+	 * several. Whichever reply arrives first is used, and the other request
+	 * is cancelled. 
+	 * 
+	 * Hedges are limited to the given fraction of GET requests, so that
+	 * they add little load even when a server is slow for everyone. They
+	 * are only sent if there is room in the in-flight window, and never
+	 * when the client has just one socket. Only GETs are hedged, since 
+	 * they are the only requests certain to be safe to send twice.
+	 * @param percentile The percentile of recent latency after which
+	 * a request is hedged, between 0 and 1, e.g. 0.95.
+	 * @param budget The most hedges that can be sent, as a fraction
+	 * of GET requests, e.g. 0.05. 0 disables hedging, which is the default.
+	 */
+	public void setHedging(double percentile, double budget) {
+		this.hedger = budget==0 ? null : new RequestHedger(percentile, budget);
+	}
+	
+	/**
+	 * Sets which requests are sent again when they time out. By default 
+	 * none are. Retries share the deadline of the original request, so 
+	 * never make the caller wait longer than the timeout.
+	 * In reactor mode this applies to {@link #sendAsync(XrapRequest)} as
+	 * well as {@link #send(XrapRequest)}. Otherwise only send retries, since
+	 * the reply to an asynchronous request is only collected when asked for.
+	 * @param policy The new policy, or null for no retries.
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		if (policy!=null)
+			retryBudget = new TokenBucket(policy.getBudget());
+		retryPolicy = policy;
+	}
+	
+	/**
+	 * Caches the replies to GET requests, so that repeated GETs are sent
+	 * as conditional GETs, and answered from the cache if the resource 
+	 * hasn't changed. PUT, POST and DELETE requests invalidate the cached
+	 * replies for their resources. By default nothing is cached.
+	 * @param cache The cache to use, or null for none.
+	 * @see XrapResponseCache
+	 */
+	public void setResponseCache(XrapResponseCache cache) {
+		this.responseCache = cache;
+	}
+	
+	/**
+	 * Returns the cache of replies to GET requests, or null if there is none.
+	 */
+	public XrapResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
+	/**
+	 * Coalesces identical GET requests, so that while a GET is in flight
+	 * any identical GETs share its reply rather than being sent. GETs are
+	 * identical if their resource, parameters, content type and conditions
+	 * are all the same. Each caller still has its own timeout, and
+	 * cancelling one caller's future only cancels the request once every
+	 * caller sharing it has cancelled. The client switches to reactor mode
+	 * if it isn't in it already.
+	 * @param enabled true to coalesce GETs, false to send each one. By 
+	 * default each one is sent.
+	 */
+	public void setCoalescing(boolean enabled) {
+		lock.lock();
+		try {
+			if (enabled) {
+				if (reactors==null) enableReactor();
+				if (coalescer==null) coalescer = new SingleFlight(timer, this::sendAsyncRetrying);
+				singleFlight = coalescer;
+			}
+			else {
+				singleFlight = null;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Guards each endpoint with a {@link CircuitBreaker}, so that requests 
+	 * stop being sent to an endpoint once too many of them are failing.
+	 * They are sent to another endpoint instead, or fail straight away if 
+	 * every endpoint's breaker is open. The client switches to reactor mode 
+	 * if it isn't in it already.
+	 * @param failureRate The proportion of requests in the last 10 seconds
+	 * that must fail for a breaker to open, or 0 to disable circuit breakers.
+	 * @param minRequests The fewest requests in the last 10 seconds for which
+	 * a breaker may open, so that a few early failures don't open it.
+	 * @param openTime How long a breaker stays open before letting a probe through.
+	 * @param unit The unit of openTime.
+	 */
+	public void setCircuitBreaker(double failureRate, int minRequests, long openTime, TimeUnit unit) {
+		if (failureRate<0 || failureRate>1) 
+			throw new IllegalArgumentException("failureRate must be between 0 and 1");
+		lock.lock();
+		try {
+			if (reactors==null) enableReactor();
+			breakerFailureRate = failureRate;
+			breakerMinRequests = minRequests;
+			breakerOpenNanos = unit.toNanos(openTime);
+			for (XrapReactor r : reactors)
+				r.setBreaker(newBreaker(r.endpoint()));
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Adds a listener that is told whenever an endpoint's circuit breaker
+	 * changes state.
+	 */
+	public void addCircuitBreakerListener(CircuitBreaker.Listener listener) {
+		breakerListeners.add(listener);
+	}
+	
+	/**
+	 * Returns the circuit breakers of the endpoints the client is sending
+	 * requests to, from which their state and counters can be read. 
+	 * This is empty unless circuit breakers have been enabled.
+	 */
+	public List<CircuitBreaker> getCircuitBreakers() {
+		List<CircuitBreaker> result = new ArrayList<CircuitBreaker>();
+		XrapReactor[] rs = reactors;
+		if (rs!=null) {
+			for (XrapReactor r : rs) {
+				if (r.breaker()!=null) result.add(r.breaker());
+			}
+		}
+		return result;
+	}
+	
+	// Must hold lock
+	private CircuitBreaker newBreaker(String endpoint) {
+		if (breakerFailureRate==0) return null;
+		return new CircuitBreaker(endpoint, breakerFailureRate, breakerMinRequests, breakerOpenNanos, breakerListeners);
+	}
+	
+	/**
+	 * Returns a snapshot of the counters describing requests that have
+	 * not received their reply in the normal way.
+	 */
+	public XrapClientStatistics getStatistics() {
+		long late, orphaned, evicted, cancelled, coalesced;
+		RequestHedger h = hedger;
+		long hedged = h==null ? 0 : h.hedgedCount();
+		TokenBucket b = retryBudget;
+		long retried = b==null ? 0 : b.withdrawnCount();
+		List<XrapReactor> all = new ArrayList<XrapReactor>();
+		lock.lock();
+		try {
+			pruneRetired();
+			late = lateReplyCount;
+			orphaned = pendingReplies.orphanedCount() + retiredOrphanedCount;
+			evicted = pendingReplies.evictedCount() + retiredEvictedCount;
+			cancelled = cancelledCount;
+			coalesced = coalescer==null ? 0 : coalescer.coalescedCount();
+			all.addAll(retired);
+		}
+		finally {
+			lock.unlock();
+		}
+		XrapReactor[] rs = reactors;
+		if (rs!=null) {
+			for (XrapReactor r : rs)
+				all.add(r);
+		}
+		for (XrapReactor r : all) {
+			late += r.lateReplyCount();
+			orphaned += r.orphanedCount();
+			evicted += r.evictedCount();
+			cancelled += r.cancelledCount();
+		}
+		return new XrapClientStatistics(late, orphaned, evicted, cancelled, hedged, retried, coalesced);
+	}
+	
+	/**
+	 * Switches the client into reactor mode, with futures completed on the
+	 * common fork join pool.
+	 * @see #enableReactor(Executor)
+	 */
+	public void enableReactor() {
+		enableReactor(ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Switches the client into reactor mode.
+	 * In reactor mode a single internal thread owns the socket, sending
+	 * every request and reading every reply. Callers never touch the socket,
+	 * they simply wait on the future for their request. A striped client
+	 * has one reactor thread per socket.
+	 * This must be called before any requests are made. A striped client
+	 * that makes a request without having called this switches to reactor 
+	 * mode using the common fork join pool. 
+	 * @param callbackExecutor The executor on which the futures returned by
+	 * {@link #sendAsync(XrapRequest)} are completed, and so on which any 
+	 * dependent actions run.
+	 */
+	public void enableReactor(Executor callbackExecutor) {
+		lock.lock();
+		try {
+			if (reactors!=null)
+				throw new IllegalStateException("Reactor already enabled");
+			XrapReactor[] rs = new XrapReactor[socks.length];
+			for (int i=0; i<socks.length; i++)
+				rs[i] = new XrapReactor(socks[i], endpoints[i], monitors[i], callbackExecutor, maxPendingRequests, timer);
+			this.callbackExecutor = callbackExecutor;
+			reactors = rs;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Switches the client into reactor mode, unless it is in it already.
+	 * @return The executor on which futures are completed.
+	 */
+	Executor requireReactor() {
+		lock.lock();
+		try {
+			if (reactors==null) enableReactor();
+			return callbackExecutor;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Connects the client to another endpoint, which requests are then
+	 * balanced onto according to the {@link StripePolicy}. The client 
+	 * switches to reactor mode if it isn't in it already.
+	 * May be called while requests are in flight.
+	 * @param endpoint The endpoint to connect to. This should be of the form
+	 * tcp://hostname/port (see http://api.zeromq.org/4-0:zmq-tcp)
+	 */
+	public void addEndpoint(String endpoint) {
+		lock.lock();
+		try {
+			if (reactors==null) enableReactor();
+			if (context==null) context = ZMQ.context(1);
+			ZMQ.Socket s = open(context);
+			EndpointMonitor monitor = EndpointMonitor.attach(context, s);
+			s.connect(endpoint);
+			ownedSockets.put(s, monitor);
+			XrapReactor r = new XrapReactor(s, endpoint, monitor, callbackExecutor, maxPendingRequests, timer);
+			r.setBreaker(newBreaker(endpoint));
+			XrapReactor[] rs = reactors;
+			XrapReactor[] added = new XrapReactor[rs.length+1];
+			System.arraycopy(rs, 0, added, 0, rs.length);
+			added[rs.length] = r;
+			reactors = added;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops sending requests to an endpoint. Requests already sent to it
+	 * still receive their replies, or time out, as usual, and its sockets 
+	 * are closed once they have all completed. The client switches to 
+	 * reactor mode if it isn't in it already.
+	 * @param endpoint The endpoint, exactly as it was given to the client.
+	 * @return false if the client wasn't connected to the endpoint.
+	 */
+	public boolean removeEndpoint(String endpoint) {
+		lock.lock();
+		try {
+			if (reactors==null) enableReactor();
+			XrapReactor[] rs = reactors;
+			List<XrapReactor> kept = new ArrayList<XrapReactor>(rs.length);
+			List<XrapReactor> removed = new ArrayList<XrapReactor>();
+			for (XrapReactor r : rs)
+				(endpoint.equals(r.endpoint()) ? removed : kept).add(r);
+			if (removed.isEmpty()) return false;
+			reactors = kept.toArray(new XrapReactor[kept.size()]);
+			for (XrapReactor r : removed) {
+				boolean owned = ownedSockets.containsKey(r.socket());
+				ownedSockets.remove(r.socket());
+				r.drain(owned);
+				retired.add(r);
+			}
+			pruneRetired();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Drops the retired reactors that have stopped, keeping their counters.
+	 * Must hold lock.
+	 */
+	private void pruneRetired() {
+		for (Iterator<XrapReactor> it = retired.iterator(); it.hasNext(); ) {
+			XrapReactor r = it.next();
+			if (!r.isStopped()) continue;
+			lateReplyCount += r.lateReplyCount();
+			retiredOrphanedCount += r.orphanedCount();
+			retiredEvictedCount += r.evictedCount();
+			cancelledCount += r.cancelledCount();
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Returns true once the client has no endpoints left, and the reactors
+	 * of those removed have stopped, so it no longer holds anything open.
+	 */
+	boolean isDrained() {
+		lock.lock();
+		try {
+			pruneRetired();
+			XrapReactor[] rs = reactors;
+			return rs!=null && rs.length==0 && retired.isEmpty();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the endpoints the client is currently sending requests to,
+	 * each listed once. An endpoint is unknown, and not listed, if the 
+	 * client was given an already connected socket.
+	 */
+	public List<String> getEndpoints() {
+		List<String> result = new ArrayList<String>();
+		XrapReactor[] rs = reactors;
+		if (rs!=null) {
+			for (XrapReactor r : rs) {
+				if (r.endpoint()!=null && !result.contains(r.endpoint()))
+					result.add(r.endpoint());
+			}
+		}
+		else {
+			for (String endpoint : endpoints) {
+				if (endpoint!=null && !result.contains(endpoint))
+					result.add(endpoint);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the endpoints to which the client currently has a connection.
+	 * Endpoints of sockets that the client was given, and so can't monitor,
+	 * are always included.
+	 */
+	public List<String> getConnectedEndpoints() {
+		pollMonitors();
+		List<String> result = new ArrayList<String>();
+		XrapReactor[] rs = reactors;
+		if (rs!=null) {
+			for (XrapReactor r : rs) {
+				if (r.endpoint()!=null && r.isConnected() && !result.contains(r.endpoint()))
+					result.add(r.endpoint());
+			}
+		}
+		else {
+			for (int i=0; i<socks.length; i++) {
+				if (endpoints[i]!=null && (monitors[i]==null || monitors[i].isConnected()) 
+						&& !result.contains(endpoints[i]))
+					result.add(endpoints[i]);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Waits until every socket has connected to its endpoint, so that the 
+	 * first requests don't pay for setting up the connections. 
+	 * @param timeout The longest time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return true if every socket is connected, or false if some still 
+	 * aren't when the timeout expires.
+	 */
+	public boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			pollMonitors();
+			if (allConnected()) return true;
+			long wait = deadline - System.nanoTime();
+			if (wait<=0) return false;
+			TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(10)));
+		}
+	}
+	
+	private boolean allConnected() {
+		XrapReactor[] rs = reactors;
+		if (rs!=null) {
+			for (XrapReactor r : rs) {
+				if (!r.isConnected()) return false;
+			}
+		}
+		else {
+			for (EndpointMonitor m : monitors) {
+				if (m!=null && !m.isConnected()) return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads the events that have arrived for the monitors, when there are 
+	 * no reactors to do it. If a request is using the socket, its events 
+	 * are left for later.
+	 */
+	private void pollMonitors() {
+		if (reactors!=null || !lock.tryLock()) return;
+		try {
+			if (reactors==null) {
+				for (EndpointMonitor m : monitors) {
+					if (m!=null) m.drain();
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops the reactor threads, if any are running. Any requests still
+	 * awaiting a reply fail with an {@link XrapException}.
+	 * Sockets created by the client are closed. A socket passed to
+	 * {@link #XrapClient(ZMQ.Socket)} is left open.
+	 */
+	public void close() throws InterruptedException {
+		List<XrapReactor> all = new ArrayList<XrapReactor>();
+		lock.lock();
+		try {
+			all.addAll(retired);
+		}
+		finally {
+			lock.unlock();
+		}
+		XrapReactor[] rs = reactors;
+		if (rs!=null) {
+			for (XrapReactor r : rs)
+				all.add(r);
+		}
+		for (XrapReactor r : all)
+			r.close();
+		lock.lock();
+		try {
+			for (Map.Entry<ZMQ.Socket, EndpointMonitor> e : ownedSockets.entrySet()) {
+				e.getKey().close();
+				if (e.getValue()!=null) e.getValue().close();
+			}
+			ownedSockets.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
 	/**
 	 * Sends the given request, and blocks waiting for the reply.
 	 * @param request An XrapRequest object defining the request to make.
@@ -84,165 +797,887 @@ public class XrapClient {
 	 * as exceptions. 
 	 */
 	public XrapReply send(XrapRequest request) throws XrapException, InterruptedException {
-		sendOnly(request);
-		XrapReply response = getResponse(request, receiveTimeout, receiveTimeoutUnit);
-		if (response==null) throw new XrapException("Timeout");
-		return response;
+		return send(request, XrapReactor.REPLY);
+	}
+	
+	/**
+	 * Sends the given request, and blocks waiting for the reply, which is
+	 * returned as a view of the received frame rather than being decoded.
+	 * This avoids copying the body, and decoding anything that isn't looked at.
+	 * @param request An XrapRequest object defining the request to make.
+	 * @return An XrapReplyView of the reply sent from the server.
+	 * @throws XrapException if there is an issue with the XRAP protocol
+	 * such as a communication error. 
+	 * @see #send(XrapRequest)
+	 */
+	public XrapReplyView sendView(XrapRequest request) throws XrapException, InterruptedException {
+		return send(request, XrapReactor.VIEW);
 	}
 	
 	/**
 	 * Makes an asynchronous request.
+	 * In reactor mode the returned future is completed by the reactor as soon as 
+	 * the reply arrives. Otherwise the reply is only collected when 
+	 * {@link CompletableFuture#get()} or {@link CompletableFuture#isDone()}
+	 * is called on the future, and dependent actions run at that point.
+	 * 
+	 * Cancelling the future forgets the request. If it hasn't yet been sent
+	 * it never will be, and if its reply arrives it is discarded without 
+	 * being decoded.
 	 * @param request
-	 * @return A {@link java.util.concurrent.Future} object through which the result can be acquired.
+	 * @return A {@link java.util.concurrent.CompletableFuture} object through which the result can be acquired.
 	 * If an error occurs receiving the reply, then an {@link java.util.concurrent.ExecutionException} can be thrown
 	 * wrapping the underlying {@link XrapException}.
 	 * @throws XrapException
 	 */
-	public Future<XrapReply> sendAsync(XrapRequest request) throws XrapException {
-		sendOnly(request);
-		return new FutureReply(request);
+	public CompletableFuture<XrapReply> sendAsync(XrapRequest request) throws XrapException {
+		return sendAsync(request, XrapReactor.REPLY);
+	}
+	
+	/**
+	 * Makes an asynchronous request, like {@link #sendAsync(XrapRequest)}, 
+	 * but completes the future with a view of the received frame rather 
+	 * than a decoded reply.
+	 * @param request An XrapRequest object defining the request to make.
+	 * @return A future through which the reply can be acquired.
+	 * @throws XrapException
+	 * @see #sendView(XrapRequest)
+	 */
+	public CompletableFuture<XrapReplyView> sendAsyncView(XrapRequest request) throws XrapException {
+		return sendAsync(request, XrapReactor.VIEW);
+	}
+	
+	private <R> R send(XrapRequest request, XrapReactor.Decoder<R> decoder) 
+			throws XrapException, InterruptedException {
+		XrapResponseCache cache = responseCache;
+		XrapResponseCache.Lookup lookup = null;
+		if (cache!=null) {
+			if (request.getMethod()!=XrapMethod.GET)
+				return sendRetrying(request, cache.invalidating(request, decoder));
+			lookup = cache.lookup(request, canRevalidateInBackground());
+			if (lookup!=null && lookup.isHit()) {
+				if (lookup.mustRevalidate()) revalidate(lookup);
+				return lookup.serve(decoder);
+			}
+		}
+		SingleFlight flights = singleFlight;
+		if (flights!=null && request.getMethod()==XrapMethod.GET)
+			return awaitReply(coalesce(flights, request, lookup, decoder));
+		if (lookup!=null)
+			return sendRetrying(lookup.request(), lookup.decoder(decoder));
+		return sendRetrying(request, decoder);
+	}
+	
+	private <R> R sendRetrying(XrapRequest request, XrapReactor.Decoder<R> decoder) 
+			throws XrapException, InterruptedException {
+		long deadline = deadline();
+		RetryPolicy policy = retryPolicy;
+		if (policy==null || !policy.retries(request.getMethod()))
+			return sendOnce(request, decoder, deadline);
+		TokenBucket budget = retryBudget;
+		budget.deposit();
+		for (int attempt=1; ; attempt++) {
+			try {
+				return sendOnce(request, decoder, attemptDeadline(policy, attempt, deadline));
+			}
+			catch (XrapTimeoutException ex) {
+				long backoff = policy.backoff(attempt);
+				if (!mayRetry(policy, budget, attempt, deadline, backoff)) throw ex;
+				TimeUnit.NANOSECONDS.sleep(backoff);
+			}
+		}
+	}
+	
+	private <R> R sendOnce(XrapRequest request, XrapReactor.Decoder<R> decoder, long deadline) 
+			throws XrapException, InterruptedException {
+		XrapReactor r = selectReactor();
+		if (r!=null) 
+			return awaitReply(submitOrHedge(r, request, decoder, deadline));
+		int requestId = sendOnly(request, deadline);
+		byte[] responseBytes = getResponse(requestId, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		if (responseBytes==null) throw new XrapTimeoutException();
+		return decoder.decode(request, responseBytes);
+	}
+	
+	private <R> CompletableFuture<R> sendAsync(XrapRequest request, XrapReactor.Decoder<R> decoder) 
+			throws XrapException {
+		XrapResponseCache cache = responseCache;
+		XrapResponseCache.Lookup lookup = null;
+		if (cache!=null) {
+			if (request.getMethod()!=XrapMethod.GET)
+				return sendAsyncRetrying(request, cache.invalidating(request, decoder), deadline());
+			lookup = cache.lookup(request, canRevalidateInBackground());
+			if (lookup!=null && lookup.isHit()) {
+				if (lookup.mustRevalidate()) revalidate(lookup);
+				CompletableFuture<R> result = new CompletableFuture<R>();
+				try {
+					result.complete(lookup.serve(decoder));
+				}
+				catch (XrapException ex) {
+					result.completeExceptionally(ex);
+				}
+				return result;
+			}
+		}
+		SingleFlight flights = singleFlight;
+		if (flights!=null && request.getMethod()==XrapMethod.GET)
+			return coalesce(flights, request, lookup, decoder);
+		if (lookup!=null)
+			return sendAsyncRetrying(lookup.request(), lookup.decoder(decoder), deadline());
+		return sendAsyncRetrying(request, decoder, deadline());
 	}
 	
-	private void sendOnly(XrapRequest request) throws XrapException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
+	/**
+	 * Sends a GET, unless an identical one is already in flight, in which
+	 * case its reply is shared.
+	 * @param lookup The outcome of looking the GET up in the cache, or null
+	 * if there is no cache.
+	 */
+	private <R> CompletableFuture<R> coalesce(SingleFlight flights, XrapRequest request, 
+			XrapResponseCache.Lookup lookup, XrapReactor.Decoder<R> decoder) throws XrapException {
+		if (lookup==null)
+			return flights.join(request, XrapReactor.FRAME, decoder, deadline());
+		return flights.join(lookup.request(), lookup.decoder(XrapReactor.FRAME), decoder, deadline());
+	}
+	
+	private <R> CompletableFuture<R> sendAsyncRetrying(XrapRequest request, XrapReactor.Decoder<R> decoder, 
+			long deadline) throws XrapException {
+		RetryPolicy policy = retryPolicy;
+		// Without a reactor, nothing would collect the reply to retry it
+		if (policy==null || !policy.retries(request.getMethod()) || (reactors==null && socks.length==1))
+			return sendAsyncOnce(request, decoder, deadline);
+		TokenBucket budget = retryBudget;
+		budget.deposit();
+		return new RetryingReply<R>(policy, budget, request, decoder, deadline);
+	}
+	
+	private <R> CompletableFuture<R> sendAsyncOnce(XrapRequest request, XrapReactor.Decoder<R> decoder, long deadline) 
+			throws XrapException {
+		XrapReactor r = selectReactor();
+		if (r!=null)
+			return submitOrHedge(r, request, decoder, deadline);
+		int requestId = sendOnly(request, deadline);
+		return new FutureReply<R>(request, requestId, deadline, decoder);
+	}
+	
+	/**
+	 * Returns true if a request can be sent without anyone waiting for its
+	 * reply, which needs a reactor to collect it.
+	 */
+	private boolean canRevalidateInBackground() {
+		return reactors!=null || socks.length>1;
+	}
+	
+	/**
+	 * Sends a conditional GET to refresh a stale cached reply, without 
+	 * waiting for its reply, which updates the cache when it arrives.
+	 */
+	private void revalidate(XrapResponseCache.Lookup lookup) {
 		try {
-			request.buildRequest(dos);
+			sendAsyncRetrying(lookup.request(), lookup.decoder(XrapReactor.FRAME), deadline())
+					.whenComplete((frame, ex) -> {
+						if (ex!=null) lookup.revalidationFailed();
+					});
 		}
-		catch (IOException ex) {
-			// shouldn't occur when writing to a ByteArrayOutputStream?
+		catch (XrapException | RuntimeException ex) {
+			lookup.revalidationFailed();
 		}
-
+	}
+	
+	/**
+	 * Returns the deadline for the given attempt at a request. Most requests
+	 * succeed first time, so each attempt but the last is given 3/4 of the
+	 * time left, keeping the rest for the attempts after it. The last is
+	 * given all of it.
+	 */
+	private static long attemptDeadline(RetryPolicy policy, int attempt, long deadline) {
+		if (attempt>=policy.getMaxAttempts()) return deadline;
+		long now = System.nanoTime();
+		long left = deadline - now;
+		return now + left - left/4;
+	}
+	
+	/**
+	 * Decides whether to retry after the given attempt has timed out,
+	 * taking a retry from the budget if so.
+	 */
+	private static boolean mayRetry(RetryPolicy policy, TokenBucket budget, int attempt, long deadline, long backoff) {
+		if (attempt>=policy.getMaxAttempts()) return false;
+		// Not worth it unless there is time for a reply after the backoff
+		if (System.nanoTime() + backoff - deadline >= 0) return false;
+		return budget.tryWithdraw();
+	}
+	
+	/**
+	 * Sends a batch of requests in one burst, without waiting for any replies.
+	 * Replies are collected as they arrive, in whatever order the server
+	 * sends them. Each request succeeds, fails or times out independently
+	 * of the others, so one failure never fails the whole batch.
+	 * Attach a dependent action to each future to process replies in
+	 * completion order, or wait on them in turn for the replies in
+	 * request order.
+	 * @param requests The requests to send.
+	 * @return One future per request, in the same order as the requests. 
+	 */
+	public List<CompletableFuture<XrapReply>> sendAll(Collection<? extends XrapRequest> requests) {
+		List<CompletableFuture<XrapReply>> result = new ArrayList<CompletableFuture<XrapReply>>(requests.size());
+		Map<XrapReactor, XrapReactor> toWake = new IdentityHashMap<XrapReactor, XrapReactor>();
+		XrapResponseCache cache = responseCache;
+		for (XrapRequest request : requests) {
+			try {
+				// GETs bypass the cache, but writes must still invalidate it
+				XrapReactor.Decoder<XrapReply> decoder = XrapReactor.REPLY;
+				if (cache!=null && request.getMethod()!=XrapMethod.GET)
+					decoder = cache.invalidating(request, decoder);
+				XrapReactor r = selectReactor();
+				if (r==null) {
+					long deadline = deadline();
+					int requestId = sendOnly(request, deadline);
+					result.add(new FutureReply<XrapReply>(request, requestId, deadline, decoder));
+				}
+				else if (window!=null) {
+					result.add(submit(r, request, decoder));
+				}
+				else {
+					// Queue the whole batch before waking the reactors, so they
+					// see it in one go.
+					XrapReactor.PendingRequest<XrapReply> p = 
+							r.newRequest(request, encode(r, request), deadline(), decoder);
+					if (r.enqueue(p))
+						toWake.put(r, r);
+					result.add(p.future);
+				}
+			}
+			catch (XrapException | RuntimeException ex) {
+				CompletableFuture<XrapReply> failed = new CompletableFuture<XrapReply>();
+				failed.completeExceptionally(ex);
+				result.add(failed);
+			}
+		}
+		for (XrapReactor r : toWake.keySet())
+			r.wakeup();
+		return result;
+	}
+	
+	/**
+	 * Fetches many resources at once. This is equivalent to calling 
+	 * {@link #sendAll(Collection)} with a plain {@link XrapGetRequest}
+	 * for each resource.
+	 * @param resources The resources to GET.
+	 * @return One future per resource, in the same order as the resources.
+	 */
+	public List<CompletableFuture<XrapReply>> multiGet(Collection<String> resources) {
+		List<XrapRequest> requests = new ArrayList<XrapRequest>(resources.size());
+		for (String resource : resources)
+			requests.add(new XrapGetRequest(resource));
+		return sendAll(requests);
+	}
+	
+	private <R> CompletableFuture<R> submitOrHedge(XrapReactor r, XrapRequest request, XrapReactor.Decoder<R> decoder,
+			long deadline) throws XrapException {
+		RequestHedger h = hedger;
+		if (h==null || request.getMethod()!=XrapMethod.GET || reactors.length<2)
+			return submit(r, request, decoder, deadline);
+		h.deposit();
+		long start = System.nanoTime();
+		CompletableFuture<R> primary = submit(r, request, decoder, deadline);
+		long delay = h.delay();
+		if (delay<0 || start+delay-deadline>=0) {
+			primary.whenComplete((reply, ex) -> {
+				if (ex==null) h.record(System.nanoTime() - start);
+			});
+			return primary;
+		}
+		return new HedgedReply<R>(h, r, request, decoder, start, deadline, primary, delay);
+	}
+	
+	private <R> CompletableFuture<R> submit(XrapReactor r, XrapRequest request, XrapReactor.Decoder<R> decoder) 
+			throws XrapException {
+		return submit(r, request, decoder, deadline());
+	}
+	
+	private <R> CompletableFuture<R> submit(XrapReactor r, XrapRequest request, XrapReactor.Decoder<R> decoder, 
+			long deadline) throws XrapException {
+		XrapReactor.PendingRequest<R> p = r.newRequest(request, encode(r, request), deadline, decoder);
+		InFlightWindow w = window;
+		if (w==null) {
+			r.submit(p);
+		}
+		else {
+			try {
+				w.admit(r, p);
+			}
+			catch (InterruptedException ex) {
+				r.withdraw(p);
+				Thread.currentThread().interrupt();
+				throw new XrapException("Interrupted waiting for the in-flight window", ex);
+			}
+			catch (XrapException ex) {
+				// Stop the timer, since nobody will see the future
+				r.withdraw(p);
+				throw ex;
+			}
+		}
+		return p.future;
+	}
+	
+	/**
+	 * Encodes a request to be sent with a reactor chosen by selectReactor,
+	 * withdrawing it from the reactor if it can't be encoded.
+	 */
+	private static byte[] encode(XrapReactor r, XrapRequest request) {
+		try {
+			return request.encode();
+		}
+		catch (RuntimeException ex) {
+			r.withdraw(null);
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Sends a request without waiting for its reply.
+	 * @param deadline The {@link System#nanoTime()} after which the reply is no longer wanted.
+	 * @return The ID the request was sent with.
+	 */
+	private int sendOnly(XrapRequest request, long deadline) throws XrapException {
+		byte[] frame = request.encode();
 		try {
 			lock.lock();
+			forgetCancelled();
+			pendingReplies.expire(System.nanoTime(), reply -> {});
+			int requestId;
+			do {
+				requestId = nextRequestId++;
+			} while (requestId==0 || !pendingReplies.put(requestId, AWAITING_REPLY, deadline));
+			XrapRequest.patchRequestId(frame, requestId);
+			request.setRequestId(requestId);
 			sock.send(new byte[0], ZMQ.SNDMORE);
-			sock.send(baos.toByteArray(), 0);
+			sock.send(frame, 0);
+			return requestId;
 		}
 		finally {
 			lock.unlock();
 		}
 	}
 	
-	private static ZMQ.Socket openAndConnect(ZMQ.Context zmqContext, String endpoint) {
+	/**
+	 * Forgets a request sent by sendOnly whose future has been cancelled.
+	 * Doesn't wait for the lock, which may be held by a thread waiting 
+	 * to receive a reply.
+	 */
+	private void forget(int requestId) {
+		cancelledReplies.offer(requestId);
+		if (lock.tryLock()) {
+			try {
+				forgetCancelled();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	// Must hold lock
+	private void forgetCancelled() {
+		cancelledCount += cancelledReplies.drain(pendingReplies::remove);
+	}
+	
+	private long deadline() {
+		return System.nanoTime() + receiveTimeoutUnit.toNanos(receiveTimeout);
+	}
+	
+	private static PendingTable<Object> newPendingReplies(int max) {
+		// Whatever we evict is either a request still awaiting its reply, 
+		// which will now time out, or a reply nobody has collected.
+		return new PendingTable<Object>(max, reply -> {});
+	}
+	
+	private <R> R awaitReply(CompletableFuture<R> future) 
+			throws XrapException, InterruptedException {
+		try {
+			// The reactor fails the future once its deadline passes, 
+			// so this should only time out if the reactor has stalled.
+			return future.get(receiveTimeout, receiveTimeoutUnit);
+		}
+		catch (TimeoutException ex) {
+			throw new XrapTimeoutException();
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof XrapException)
+				throw (XrapException)ex.getCause();
+			throw new XrapException(ex.getCause().getMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Returns the reactor that the next request from this thread should
+	 * be sent with, or null if the client isn't in reactor mode.
+	 * @throws XrapException if every endpoint has been removed.
+	 */
+	private XrapReactor selectReactor() throws XrapException {
+		XrapReactor[] rs = reactors;
+		if (rs==null) {
+			if (socks.length==1) return null;
+			lock.lock();
+			try {
+				if (reactors==null) enableReactor();
+				rs = reactors;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		if (rs.length==0) throw new XrapException("No endpoints");
+		XrapReactor r = rs.length==1 ? rs[0] : pick(rs);
+		if (!r.isDown() && r.allowRequest()) return r;
+		// Its endpoint is down or its circuit breaker is open, so send it 
+		// anywhere else that will take it, preferring endpoints that are up. 
+		// If they are all down, it might as well wait in a queue for one.
+		int start = ThreadLocalRandom.current().nextInt(rs.length);
+		for (int pass=0; pass<2; pass++) {
+			for (int i=0; i<rs.length; i++) {
+				XrapReactor other = rs[(start+i) % rs.length];
+				if (other==r && pass==0) continue;
+				if (other.isDown()==(pass==1) && other.allowRequest()) return other;
+			}
+		}
+		throw new XrapException("Circuit open");
+	}
+	
+	/**
+	 * Chooses between several reactors according to the stripe policy.
+	 */
+	private XrapReactor pick(XrapReactor[] rs) {
+		switch (stripePolicy) {
+		case LEAST_OUTSTANDING:
+			XrapReactor best = rs[0];
+			int bestOutstanding = best.outstanding();
+			for (int i=1; i<rs.length; i++) {
+				int outstanding = rs[i].outstanding();
+				if (outstanding<bestOutstanding) {
+					best = rs[i];
+					bestOutstanding = outstanding;
+				}
+			}
+			return best;
+		case ROUND_ROBIN:
+			return rs[(nextStripe.getAndIncrement() & Integer.MAX_VALUE) % rs.length];
+		case POWER_OF_TWO_CHOICES:
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int a = random.nextInt(rs.length);
+			int b = random.nextInt(rs.length-1);
+			if (b>=a) b++;
+			return cost(rs[a])<=cost(rs[b]) ? rs[a] : rs[b];
+		default:
+			long threadId = Thread.currentThread().getId();
+			return rs[(int)(threadId % rs.length)];
+		}
+	}
+	
+	/**
+	 * Estimates how long a request sent with the given reactor would take,
+	 * were the requests ahead of it to be served one at a time.
+	 */
+	private static long cost(XrapReactor r) {
+		return (r.latency()+1) * (r.outstanding()+1);
+	}
+	
+	/**
+	 * Creates a socket, which the caller connects once it has attached a monitor.
+	 */
+	private static ZMQ.Socket open(ZMQ.Context zmqContext) {
 		ZMQ.Socket sock = zmqContext.socket(ZMQ.DEALER);
-		sock.connect(endpoint);
+		// Back off exponentially while the server can't be reached, rather
+		// than trying again every 100ms.
+		sock.setReconnectIVLMax(RECONNECT_INTERVAL_MAX);
 		return sock;
 	}
 	
-	private XrapReply getResponse(XrapRequest request) throws XrapException, InterruptedException {
-		return getResponse(request, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	private static String[] repeat(String endpoint, int socketCount) {
+		if (socketCount<1) throw new IllegalArgumentException("socketCount must be positive");
+		String[] result = new String[socketCount];
+		Arrays.fill(result, endpoint);
+		return result;
 	}
 	
-	
-	private XrapReply getResponse(XrapRequest request, long timeout, TimeUnit unit) throws XrapException, InterruptedException {
-		XrapReply reply;
+	/**
+	 * Waits for the reply to a request sent by sendOnly.
+	 * @return The undecoded reply, or null if it doesn't arrive in time.
+	 */
+	private byte[] getResponse(int requestId, long timeout, TimeUnit unit) throws XrapException, InterruptedException {
+		byte[] responseBytes;
 
 		// There are two timeouts. We have to ensure that we return in a time
 		// consistent with the timeout passed as argument. We first have to acquire the
 		// lock. Another thread may have the lock, and may be waiting on a longer
 		// timeout, waiting on the socket. 
 		
-		long timeoutms = unit.toMillis(timeout);
-		while (timeoutms>0) {
-			long loopStart = new java.util.Date().getTime();
-
-			// First see whether the response has already been received, either
-			// by us previously, or by another thread that might also be waiting.
-			if ((reply = responseCache.remove(request.getRequestId()))!=null) {
-				return reply;
-			}
+		long remaining = unit.toNanos(timeout);
+		while (remaining>0) {
+			long loopStart = System.nanoTime();
 			
-			byte[] responseBytes;
-			if (!lock.tryLock(timeoutms, TimeUnit.MILLISECONDS)) return null;
+			if (!lock.tryLock(remaining, TimeUnit.NANOSECONDS)) return null;
 			try {
-				sock.setReceiveTimeOut((int)Math.min(timeoutms, Integer.MAX_VALUE));
-				responseBytes = sock.recv();
-				timeoutms -= new java.util.Date().getTime() - loopStart;
-				if (responseBytes==null) {
-					// Timed out, or error?
-					// Not sure how we tell the difference.
-					continue;
+				forgetCancelled();
+				// See whether the response has already been received, either
+				// by us previously, or by another thread that might also be waiting.
+				// If there is no entry at all, our deadline has passed. 
+				Object entry = pendingReplies.get(requestId);
+				if (entry==null) return null;
+				if (entry!=AWAITING_REPLY) {
+					pendingReplies.remove(requestId);
+					responseBytes = (byte[])entry;
 				}
-				
-				// Depending on whether a REQ or DEALER is used, we might get an
-				// empty delimiter frame.
-				if (responseBytes.length==0)
+				else {
+					sock.setReceiveTimeOut((int)Math.min(TimeUnit.NANOSECONDS.toMillis(remaining), Integer.MAX_VALUE));
 					responseBytes = sock.recv();
+					remaining -= System.nanoTime() - loopStart;
+					if (responseBytes==null) {
+						// Timed out, or error?
+						// Not sure how we tell the difference.
+						continue;
+					}
+					
+					// Depending on whether a REQ or DEALER is used, we might get an
+					// empty delimiter frame.
+					if (responseBytes.length==0)
+						responseBytes = sock.recv();
+					
+					// Route the reply by the request ID in its header. Anyone else's 
+					// reply is left undecoded for its owner to find, unless its owner 
+					// has already given up on it.
+					ReplyDecoder.checkHeader(responseBytes);
+					int replyId = ReplyDecoder.peekRequestId(responseBytes);
+					if (replyId == requestId) {
+						pendingReplies.remove(replyId);
+					}
+					else {
+						if (!pendingReplies.replace(replyId, responseBytes)) 
+							lateReplyCount++;
+						continue;
+					}
+				}
+				pendingReplies.expire(System.nanoTime(), reply -> {});
 			}
 			finally {
 				lock.unlock();
 			}
 			
-			reply = request.parseResponse(responseBytes);
-			if (reply.requestId == request.getRequestId())
-				return reply;
-			responseCache.put(request.getRequestId(), reply);
+			// Only our own reply is decoded, by our own caller.
+			return responseBytes;
 		}
 		return null;
 	}
 	
-	private class FutureReply implements Future<XrapReply> {
-		private XrapRequest request;
-		private XrapReply response;
-		private XrapException ex;
+	/**
+	 * Receives whatever replies have already arrived, without waiting, to
+	 * see whether the reply to a request sent by sendOnly is among them.
+	 * @return The undecoded reply, or null if it hasn't arrived yet, or 
+	 * another thread is receiving.
+	 */
+	private byte[] pollResponse(int requestId) throws XrapException {
+		if (!lock.tryLock()) return null;
+		try {
+			forgetCancelled();
+			while (true) {
+				Object entry = pendingReplies.get(requestId);
+				if (entry==null) return null;
+				if (entry!=AWAITING_REPLY) {
+					pendingReplies.remove(requestId);
+					return (byte[])entry;
+				}
+				byte[] responseBytes = sock.recv(ZMQ.DONTWAIT);
+				if (responseBytes==null) return null;
+				if (responseBytes.length==0)
+					responseBytes = sock.recv();
+				// Leave it for its owner, which may be us next time round
+				ReplyDecoder.checkHeader(responseBytes);
+				if (!pendingReplies.replace(ReplyDecoder.peekRequestId(responseBytes), responseBytes))
+					lateReplyCount++;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * The future of a GET that may be hedged. Completes with the first reply
+	 * to either request, and fails only if both do.
+	 */
+	private class HedgedReply<R> extends CompletableFuture<R> {
+		private final RequestHedger hedger;
+		private final XrapReactor primaryReactor;
+		private final XrapRequest request;
+		private final XrapReactor.Decoder<R> decoder;
+		private final long start;
+		private final long deadline;
+		private final CompletableFuture<R> primary;
+		private final HashedWheelTimer.Timeout timeout;
+		private volatile CompletableFuture<R> hedge;
 		
-		public FutureReply(XrapRequest request) {
+		HedgedReply(RequestHedger hedger, XrapReactor primaryReactor, XrapRequest request, 
+				XrapReactor.Decoder<R> decoder, long start, long deadline, CompletableFuture<R> primary, long delay) {
+			this.hedger = hedger;
+			this.primaryReactor = primaryReactor;
 			this.request = request;
+			this.decoder = decoder;
+			this.start = start;
+			this.deadline = deadline;
+			this.primary = primary;
+			this.timeout = timer.schedule(this::sendHedge, start+delay);
+			primary.whenComplete((reply, ex) -> settle(primary, reply, ex));
+		}
+		
+		/**
+		 * Sends the request again on another socket. Called on the timer 
+		 * thread, so doesn't wait for room in the in-flight window.
+		 */
+		private void sendHedge() {
+			if (isDone()) return;
+			XrapReactor[] rs = reactors;
+			if (rs.length<2) return;
+			XrapReactor r = rs[ThreadLocalRandom.current().nextInt(rs.length)];
+			if (r==primaryReactor) r = rs[(Arrays.asList(rs).indexOf(r)+1) % rs.length];
+			byte[] frame = request.encode();
+			// Only a hedge that is sent is paid for
+			if (!hedger.tryWithdraw()) return;
+			if (!r.allowRequest()) {
+				hedger.refund();
+				return;
+			}
+			XrapReactor.PendingRequest<R> p = r.newRequest(request, frame, deadline, decoder);
+			InFlightWindow w = window;
+			if (w==null) {
+				r.submit(p);
+			}
+			else if (!w.tryAdmit(r, p)) {
+				r.withdraw(p);
+				hedger.refund();
+				return;
+			}
+			hedge = p.future;
+			p.future.whenComplete((reply, ex) -> settle(p.future, reply, ex));
+			// Lost a race with the primary failing, which didn't see the hedge
+			if (isDone()) p.future.cancel(false);
+		}
+		
+		private void settle(CompletableFuture<R> from, R reply, Throwable ex) {
+			CompletableFuture<R> other = from==primary ? hedge : primary;
+			if (ex==null) {
+				hedger.record(System.nanoTime() - start);
+				if (complete(reply)) {
+					timeout.cancel();
+					if (other!=null) other.cancel(false);
+				}
+			}
+			else if (other==null || other.isDone()) {
+				timeout.cancel();
+				completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+			}
 		}
 		
 		@Override
 		public boolean cancel(boolean mayInterruptIfRunning) {
-			// Cancellation not supported.
-			return false;
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				timeout.cancel();
+				primary.cancel(false);
+				CompletableFuture<R> h = hedge;
+				if (h!=null) h.cancel(false);
+			}
+			return cancelled;
 		}
-
-		@Override
-		public boolean isCancelled() {
-			// Cancellation not supported.
-			return false;
+	}
+	
+	/**
+	 * The future of a request that is retried if it times out. Each attempt
+	 * is made through the reactor, and the wait before each retry is kept by
+	 * the timer.
+	 */
+	private class RetryingReply<R> extends CompletableFuture<R> {
+		private final RetryPolicy policy;
+		private final TokenBucket budget;
+		private final XrapRequest request;
+		private final XrapReactor.Decoder<R> decoder;
+		private final long deadline;
+		private volatile CompletableFuture<R> attempt;
+		private volatile HashedWheelTimer.Timeout backoff;
+		
+		RetryingReply(RetryPolicy policy, TokenBucket budget, XrapRequest request, 
+				XrapReactor.Decoder<R> decoder, long deadline) throws XrapException {
+			this.policy = policy;
+			this.budget = budget;
+			this.request = request;
+			this.decoder = decoder;
+			this.deadline = deadline;
+			attempt(1);
 		}
-
+		
+		private void attempt(int n) throws XrapException {
+			CompletableFuture<R> f = sendAsyncOnce(request, decoder, attemptDeadline(policy, n, deadline));
+			attempt = f;
+			f.whenComplete((reply, ex) -> {
+				if (ex==null) 
+					complete(reply);
+				else if (!(ex instanceof XrapTimeoutException) || isDone())
+					completeExceptionally(ex);
+				else
+					retry(n, (XrapTimeoutException)ex);
+			});
+			// Lost a race with being cancelled, which didn't see this attempt
+			if (isDone()) f.cancel(false);
+		}
+		
+		private void retry(int n, XrapTimeoutException ex) {
+			long wait = policy.backoff(n);
+			if (!mayRetry(policy, budget, n, deadline, wait)) {
+				completeExceptionally(ex);
+				return;
+			}
+			// The timer thread mustn't send the request itself, in case it
+			// has to wait for the in-flight window.
+			backoff = timer.schedule(() -> ForkJoinPool.commonPool().execute(() -> {
+				if (isDone()) return;
+				try {
+					attempt(n+1);
+				}
+				catch (XrapException | RuntimeException e) {
+					completeExceptionally(e);
+				}
+			}), System.nanoTime() + wait);
+		}
+		
 		@Override
-		public XrapReply get() throws InterruptedException, ExecutionException {
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				HashedWheelTimer.Timeout t = backoff;
+				if (t!=null) t.cancel();
+				attempt.cancel(false);
+			}
+			return cancelled;
+		}
+	}
+	
+	/**
+	 * The future returned by sendAsync when not in reactor mode. The reply 
+	 * is received by whichever thread asks for it. If nobody does, the timer 
+	 * fails the future once the deadline passes, so that dependent actions
+	 * still run. 
+	 */
+	private class FutureReply<R> extends CompletableFuture<R> {
+		private XrapRequest request;
+		private int requestId;
+		private long deadline;
+		private XrapReactor.Decoder<R> decoder;
+		private HashedWheelTimer.Timeout timeout;
+		
+		public FutureReply(XrapRequest request, int requestId, long deadline, XrapReactor.Decoder<R> decoder) {
+			this.request = request;
+			this.requestId = requestId;
+			this.deadline = deadline;
+			this.decoder = decoder;
+			// The timer thread mustn't run dependent actions itself.
+			this.timeout = timer.schedule(() -> ForkJoinPool.commonPool().execute(
+					() -> completeExceptionally(new XrapTimeoutException())), deadline);
+		}
+		
+		/**
+		 * Waits for the reply, and completes the future if it arrives in time.
+		 */
+		private void collect(long timeout, TimeUnit unit) throws InterruptedException {
 			try {
-				if (ex!=null) throw ex;
-				if (response==null)
-					response = getResponse(request);
-				return response;
+				settle(getResponse(requestId, timeout, unit));
 			}
 			catch (XrapException ex) {
-				throw new ExecutionException(ex);
+				settle(ex);
 			}
 		}
-
-		@Override
-		public XrapReply get(long timeout, TimeUnit unit)
-				throws InterruptedException, ExecutionException, TimeoutException {
+		
+		/**
+		 * Completes the future if the reply has already arrived, without 
+		 * waiting for it.
+		 */
+		private void poll() {
 			try {
-				if (ex!=null) throw ex;
-				if (response==null)
-					response = getResponse(request, timeout, unit);
-				if (response==null)
-					throw new TimeoutException();
-				return response;
+				settle(pollResponse(requestId));
 			}
 			catch (XrapException ex) {
-				throw new ExecutionException(ex);
+				settle(ex);
 			}
 		}
 		
-		@Override
-		public boolean isDone() {
+		private void settle(byte[] responseBytes) {
 			try {
-				if (response==null)
-					response = getResponse(request, 0, TimeUnit.SECONDS);
+				if (responseBytes!=null) 
+					complete(decoder.decode(request, responseBytes));
+				else if (System.nanoTime() - deadline >= 0)
+					completeExceptionally(new XrapTimeoutException());
 			}
 			catch (XrapException ex) {
-				this.ex = ex;
+				completeExceptionally(ex);
+			}
+			if (super.isDone())
+				this.timeout.cancel();
+		}
+		
+		private void settle(XrapException ex) {
+			completeExceptionally(ex);
+			this.timeout.cancel();
+		}
+		
+		/**
+		 * Forgets the request, so that its reply is discarded without being 
+		 * decoded if it arrives.
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			// Only the first to complete the future forgets the request, 
+			// since its ID may be reused as soon as it has been forgotten.
+			if (!completeExceptionally(new CancellationException())) 
+				return isCancelled();
+			timeout.cancel();
+			forget(requestId);
+			return true;
+		}
+
+		@Override
+		public R get() throws InterruptedException, ExecutionException {
+			if (!super.isDone())
+				collect(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			return super.get();
+		}
+
+		@Override
+		public R get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			if (!super.isDone())
+				collect(timeout, unit);
+			if (!super.isDone())
+				throw new TimeoutException();
+			return super.get();
+		}
+		
+		@Override
+		public R join() {
+			try {
+				return get();
+			}
+			catch (ExecutionException ex) {
+				throw new CompletionException(ex.getCause());
 			}
 			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new CompletionException(ex);
 			}
-			return response!=null;
+		}
+		
+		@Override
+		public boolean isDone() {
+			if (!super.isDone()) poll();
+			return super.isDone();
 		}
 	}
 }
@@ -0,0 +1,95 @@
+package com.wpl.xrapc;
+
+/**
+ * A snapshot of the counters an {@link XrapClient} keeps about requests
+ * that did not receive their reply in the normal way.
+ * Each counter is cumulative over the lifetime of the client.
+ * @author tomq
+ */
+public class XrapClientStatistics {
+	private final long lateReplies;
+	private final long orphanedRequests;
+	private final long evictedRequests;
+	private final long cancelledRequests;
+	private final long hedgedRequests;
+	private final long retriedRequests;
+	private final long coalescedRequests;
+	
+	XrapClientStatistics(long lateReplies, long orphanedRequests, long evictedRequests, long cancelledRequests,
+			long hedgedRequests, long retriedRequests, long coalescedRequests) {
+		this.lateReplies = lateReplies;
+		this.orphanedRequests = orphanedRequests;
+		this.evictedRequests = evictedRequests;
+		this.cancelledRequests = cancelledRequests;
+		this.hedgedRequests = hedgedRequests;
+		this.retriedRequests = retriedRequests;
+		this.coalescedRequests = coalescedRequests;
+	}
+	
+	/**
+	 * Returns the number of replies that arrived after their request had
+	 * been forgotten, for example because it timed out. These are discarded 
+	 * without being decoded.
+	 */
+	public long getLateReplies() {
+		return lateReplies;
+	}
+	
+	/**
+	 * Returns the number of requests removed because their deadline
+	 * passed, either before a reply arrived or before anyone collected it.
+	 */
+	public long getOrphanedRequests() {
+		return orphanedRequests;
+	}
+	
+	/**
+	 * Returns the number of requests evicted to make room for new ones, 
+	 * because the maximum number of pending requests had been reached. 
+	 * @see XrapClient#setMaxPendingRequests(int)
+	 */
+	public long getEvictedRequests() {
+		return evictedRequests;
+	}
+	
+	/**
+	 * Returns the number of requests whose future was cancelled before
+	 * the reply arrived.
+	 */
+	public long getCancelledRequests() {
+		return cancelledRequests;
+	}
+	
+	/**
+	 * Returns the number of GET requests sent a second time because their
+	 * reply was slow to arrive.
+	 * @see XrapClient#setHedging(double, double)
+	 */
+	public long getHedgedRequests() {
+		return hedgedRequests;
+	}
+	
+	/**
+	 * Returns the number of times a request was sent again after timing out.
+	 * @see XrapClient#setRetryPolicy(RetryPolicy)
+	 */
+	public long getRetriedRequests() {
+		return retriedRequests;
+	}
+	
+	/**
+	 * Returns the number of GET requests that shared the reply of an 
+	 * identical request already in flight, rather than being sent.
+	 * @see XrapClient#setCoalescing(boolean)
+	 */
+	public long getCoalescedRequests() {
+		return coalescedRequests;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("late=%d orphaned=%d evicted=%d cancelled=%d hedged=%d retried=%d coalesced=%d", 
+				lateReplies, orphanedRequests, evictedRequests, cancelledRequests, hedgedRequests, retriedRequests,
+				coalescedRequests);
+	}
+}
@@ -1,7 +1,5 @@
 package com.wpl.xrapc;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Date;
 
@@ -12,6 +10,7 @@ import java.util.Date;
 public class XrapDeleteRequest extends XrapRequest {
 	private Date ifUnmodifiedSince;
 	private String ifMatch;
+	private byte[] ifMatchBytes;
 	
 	/**
 	 * Constructs a new DELETE request.
@@ -52,6 +51,7 @@ public class XrapDeleteRequest extends XrapRequest {
 	 */
 	public void setIfMatch(String etag) {
 		this.ifMatch = etag;
+		this.ifMatchBytes = utf8(etag);
 	}
 	
 	/**
@@ -66,16 +66,26 @@ public class XrapDeleteRequest extends XrapRequest {
 	
 	
 	@Override
-	void buildRequest(DataOutputStream dos) throws IOException {
-		dos.writeShort(Constants.SIGNATURE);
-		dos.writeByte(Constants.DELETE_COMMAND);
-		dos.writeInt(getRequestId());
-		writeString(dos, getResource());
+	public XrapMethod getMethod() {
+		return XrapMethod.DELETE;
+	}
+	
+	@Override
+	int encodedSize() {
+		return 2 + 1 + 4 + stringSize(getResourceBytes()) + 8 + stringSize(ifMatchBytes);
+	}
+	
+	@Override
+	void encode(ByteBuffer buffer) {
+		buffer.putShort(Constants.SIGNATURE);
+		buffer.put((byte)Constants.DELETE_COMMAND);
+		buffer.putInt(getRequestId());
+		putString(buffer, getResourceBytes());
 		if (ifUnmodifiedSince!=null)
-			dos.writeLong(ifUnmodifiedSince.getTime());
+			buffer.putLong(ifUnmodifiedSince.getTime());
 		else 
-			dos.writeLong(0);
-		writeString(dos, ifMatch);
+			buffer.putLong(0);
+		putString(buffer, ifMatchBytes);
 	}
 
 	@Override
@@ -1,7 +1,5 @@
 package com.wpl.xrapc;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -15,7 +13,9 @@ import java.util.List;
 public class XrapGetRequest extends XrapRequest {
 	private Date ifModifiedSince;
 	private String ifNoneMatch;
+	private byte[] ifNoneMatchBytes;
 	private String contentType;
+	private byte[] contentTypeBytes;
 	private List<Parameter> parameters = new ArrayList<Parameter>();
 
 	/**
@@ -25,6 +25,23 @@ public class XrapGetRequest extends XrapRequest {
 	public XrapGetRequest(String resource) {
 		super(resource);
 	}
+
+	private XrapGetRequest(XrapGetRequest request) {
+		super(request.getResource(), request.getResourceBytes());
+		this.contentType = request.contentType;
+		this.contentTypeBytes = request.contentTypeBytes;
+		this.parameters = new ArrayList<Parameter>(request.parameters);
+	}
+
+	/**
+	 * Returns a new request for the same resource, content type and
+	 * parameters, which are everything a GET has besides its conditions.
+	 * The conditions and request ID aren't copied, and a subclass is
+	 * copied as a plain GET.
+	 */
+	XrapGetRequest copyUnconditional() {
+		return new XrapGetRequest(this);
+	}
 	
 	/**
 	 * Performs a conditional GET based on modification date. 
@@ -57,6 +74,7 @@ public class XrapGetRequest extends XrapRequest {
 	 */
 	public void setIfNoneMatch(String etag) {
 		this.ifNoneMatch = etag;
+		this.ifNoneMatchBytes = utf8(etag);
 	}
 	
 	/**
@@ -78,6 +96,7 @@ public class XrapGetRequest extends XrapRequest {
 	 */
 	public void setContentType(String contentType) {
 		this.contentType = contentType;
+		this.contentTypeBytes = utf8(contentType);
 	}
 	
 	/**
@@ -100,6 +119,9 @@ public class XrapGetRequest extends XrapRequest {
 		private String name;
 		private String value;
 		private byte[] binaryValue;
+		// The encoded forms, cached since parameters are immutable.
+		private byte[] nameBytes;
+		private byte[] valueBytes;
 		
 		/**
 		 * Constructs a new request parameter with given name
@@ -110,6 +132,8 @@ public class XrapGetRequest extends XrapRequest {
 		public Parameter(String name, String value) {
 			this.name = name;
 			this.value = value;
+			this.nameBytes = utf8(name);
+			this.valueBytes = utf8(value);
 		}
 		
 		/**
@@ -121,6 +145,8 @@ public class XrapGetRequest extends XrapRequest {
 		public Parameter(String name, byte[] value) {
 			this.name = name;
 			this.binaryValue = value;
+			this.nameBytes = utf8(name);
+			this.valueBytes = value;
 		}
 		
 		/**
@@ -208,21 +234,20 @@ public class XrapGetRequest extends XrapRequest {
 	 * @param p The parameter object 
 	 */
 	public void setParameter(Parameter p) {
-		int i=0;
-		for (i=0; i<parameters.size(); i++) {
-			if (parameters.get(i).getName().equalsIgnoreCase(p.getName())) {
-				parameters.set(i, p);
-				i++;
-				break;
-			}
-		}
-		
-		for (;i<parameters.size(); i++) {
+		boolean replaced = false;
+		for (int i=0; i<parameters.size(); i++) {
 			if (parameters.get(i).getName().equalsIgnoreCase(p.getName())) {
-				parameters.remove(i);
-				i--;
+				if (replaced) {
+					parameters.remove(i);
+					i--;
+				}
+				else {
+					parameters.set(i, p);
+					replaced = true;
+				}
 			}
 		}
+		if (!replaced) parameters.add(p);
 	}
 
 	
@@ -234,27 +259,50 @@ public class XrapGetRequest extends XrapRequest {
 		return Collections.unmodifiableList(parameters);
 	}
 	
-	void buildRequest(DataOutputStream dos) throws IOException {
-		dos.writeShort(Constants.SIGNATURE);
-		dos.writeByte(Constants.GET_COMMAND);
-		dos.writeInt(getRequestId());
-		writeString(dos, getResource());
+	@Override
+	public XrapMethod getMethod() {
+		return XrapMethod.GET;
+	}
+	
+	@Override
+	boolean isConditional() {
+		return ifModifiedSince!=null || ifNoneMatch!=null;
+	}
+	
+	@Override
+	int encodedSize() {
+		int size = 2 + 1 + 4 + stringSize(getResourceBytes()) + 4;
+		if (parameters!=null) {
+			for (int i=0; i<parameters.size(); i++) {
+				Parameter p = parameters.get(i);
+				size += stringSize(p.nameBytes) + longStringSize(p.valueBytes);
+			}
+		}
+		return size + 8 + stringSize(ifNoneMatchBytes) + stringSize(contentTypeBytes);
+	}
+	
+	@Override
+	void encode(ByteBuffer buffer) {
+		buffer.putShort(Constants.SIGNATURE);
+		buffer.put((byte)Constants.GET_COMMAND);
+		buffer.putInt(getRequestId());
+		putString(buffer, getResourceBytes());
 		if (parameters==null) {
-			dos.writeInt(0);
+			buffer.putInt(0);
 		}
 		else {
-			dos.writeInt(parameters.size());
+			buffer.putInt(parameters.size());
 			for (int i=0; i<parameters.size(); i++) {
-				writeParameter(dos, parameters.get(i));
+				writeParameter(buffer, parameters.get(i));
 			}
 		}
 		
 		if (getIfModifiedSince()!=null)
-			dos.writeLong(getIfModifiedSince().getTime());
+			buffer.putLong(getIfModifiedSince().getTime());
 		else
-			dos.writeLong(0);
-		writeString(dos, getIfNoneMatch());
-		writeString(dos, getContentType());
+			buffer.putLong(0);
+		putString(buffer, ifNoneMatchBytes);
+		putString(buffer, contentTypeBytes);
 	}
 	
 	XrapReply parseResponse(ByteBuffer buffer) throws XrapException {
@@ -285,10 +333,9 @@ public class XrapGetRequest extends XrapRequest {
 		}
 	}
 	
-	private void writeParameter(DataOutputStream dos, Parameter p) throws IOException {
-		writeString(dos, p.getName());
-		if (p.isBinary()) writeLongString(dos, p.getBinaryValue());
-		else writeLongString(dos, p.getStringValue());
+	private void writeParameter(ByteBuffer buffer, Parameter p) {
+		putString(buffer, p.nameBytes);
+		putLongString(buffer, p.valueBytes);
 	}
 	
 	
@@ -0,0 +1,301 @@
+package com.wpl.xrapc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The metadata of a reply, read in place from the received frame.
+ *
+ * Only the position of each entry is recorded up front. Names are decoded
+ * when first asked for, through a dictionary shared by every reply, so that
+ * the names which recur on every reply (content-length, x-request-id and
+ * so on) are the same String instances each time rather than new ones.
+ * Values are never copied unless asked for.
+ *
+ * Lookup by name ignores the case of ASCII letters, and takes constant
+ * time once the first lookup has built an index. If a name occurs more
+ * than once, the first entry is the one found.
+ *
+ * Like {@link XrapReplyView}, this isn't safe for use by several threads at once.
+ * @author tomq
+ */
+public final class XrapMetadata {
+	private static Charset utf8 = Charset.forName("UTF8");
+
+	static final XrapMetadata EMPTY = new XrapMetadata(new byte[0], new int[0]);
+
+	private final byte[] frame;
+	// The offset of each entry's name, which is followed by its value.
+	private final int[] offsets;
+	// Built on first lookup. Each slot holds an entry number plus one, or 0 if empty.
+	private int[] index;
+	private String[] names;
+
+	private XrapMetadata(byte[] frame, int[] offsets) {
+		this.frame = frame;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Records where each entry of a hash lies in the frame. The frame
+	 * must already have been checked to hold the whole hash.
+	 * @param frame The reply frame.
+	 * @param offset The offset of the hash, which starts with its entry count.
+	 */
+	static XrapMetadata read(byte[] frame, int offset) {
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		int count = buffer.getInt(offset);
+		if (count==0) return EMPTY;
+		int[] offsets = new int[count];
+		int position = offset + 4;
+		for (int i=0; i<count; i++) {
+			offsets[i] = position;
+			position += 1 + (frame[position]&0xff);
+			position += 4 + buffer.getInt(position);
+		}
+		return new XrapMetadata(frame, offsets);
+	}
+
+	/**
+	 * Returns the number of entries.
+	 */
+	public int size() {
+		return offsets.length;
+	}
+
+	/**
+	 * Returns the name of the i'th entry.
+	 */
+	public String getName(int i) {
+		if (names==null) names = new String[offsets.length];
+		String name = names[i];
+		if (name==null) {
+			int offset = offsets[i];
+			name = names[i] = Names.intern(frame, offset+1, frame[offset]&0xff);
+		}
+		return name;
+	}
+
+	/**
+	 * Returns a read-only view of the value of the i'th entry, without copying it.
+	 */
+	public ByteBuffer getValue(int i) {
+		int offset = valueOffset(i);
+		int length = readInt(offset);
+		return ByteBuffer.wrap(frame, offset+4, length).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns a read-only view of the value with the given name, or null
+	 * if there is none. Case is ignored.
+	 */
+	public ByteBuffer get(String name) {
+		int i = indexOf(name);
+		return i<0 ? null : getValue(i);
+	}
+
+	/**
+	 * Returns the value with the given name decoded as UTF8, or null
+	 * if there is none. Case is ignored.
+	 */
+	public String getString(String name) {
+		int i = indexOf(name);
+		if (i<0) return null;
+		int offset = valueOffset(i);
+		return new String(frame, offset+4, readInt(offset), utf8);
+	}
+
+	/**
+	 * Returns true if there is a value with the given name. Case is ignored.
+	 */
+	public boolean contains(String name) {
+		return indexOf(name)>=0;
+	}
+
+	/**
+	 * Copies every entry into an array of {@link NameValuePair}.
+	 */
+	public NameValuePair[] toArray() {
+		NameValuePair[] result = new NameValuePair[offsets.length];
+		for (int i=0; i<result.length; i++) {
+			ByteBuffer value = getValue(i);
+			byte[] bytes = new byte[value.remaining()];
+			value.get(bytes);
+			result[i] = new NameValuePair(getName(i), bytes);
+		}
+		return result;
+	}
+
+	private int valueOffset(int i) {
+		int offset = offsets[i];
+		return offset + 1 + (frame[offset]&0xff);
+	}
+
+	private int readInt(int offset) {
+		return ((frame[offset]&0xff)<<24) | ((frame[offset+1]&0xff)<<16)
+				| ((frame[offset+2]&0xff)<<8) | (frame[offset+3]&0xff);
+	}
+
+	private int indexOf(String name) {
+		if (offsets.length==0) return -1;
+		if (index==null) buildIndex();
+		byte[] bytes = Names.isAscii(name) ? null : name.getBytes(utf8);
+		int mask = index.length-1;
+		int slot = (bytes==null ? Names.hashIgnoreCase(name) : Names.hashIgnoreCase(bytes, 0, bytes.length)) & mask;
+		int entry;
+		while ((entry = index[slot])!=0) {
+			int offset = offsets[entry-1];
+			int length = frame[offset]&0xff;
+			if (bytes==null ? Names.equalsIgnoreCase(name, frame, offset+1, length)
+					: Names.equalsIgnoreCase(bytes, frame, offset+1, length))
+				return entry-1;
+			slot = (slot+1) & mask;
+		}
+		return -1;
+	}
+
+	private void buildIndex() {
+		int slots = Integer.highestOneBit(offsets.length*2-1)<<1;
+		index = new int[slots];
+		int mask = slots-1;
+		for (int i=0; i<offsets.length; i++) {
+			int offset = offsets[i];
+			int length = frame[offset]&0xff;
+			int slot = Names.hashIgnoreCase(frame, offset+1, length) & mask;
+			boolean duplicate = false;
+			while (index[slot]!=0) {
+				int other = offsets[index[slot]-1];
+				if (Names.equalsIgnoreCase(frame, offset+1, length, frame, other+1, frame[other]&0xff)) {
+					// Keep the first
+					duplicate = true;
+					break;
+				}
+				slot = (slot+1) & mask;
+			}
+			if (!duplicate) index[slot] = i+1;
+		}
+	}
+
+	/**
+	 * The dictionary through which metadata names are decoded, and
+	 * case insensitive comparisons of ASCII names.
+	 *
+	 * The dictionary is a fixed size table shared by every reply, holding the
+	 * names most recently seen in each slot. It starts out holding the common
+	 * names, and then adapts to whatever names the server actually sends.
+	 * Entries are immutable, so threads can race to replace a slot without
+	 * harm, and no locking is needed.
+	 */
+	static final class Names {
+		private static final int SLOTS = 512;
+		private static final Entry[] dictionary = new Entry[SLOTS];
+
+		private static final class Entry {
+			final byte[] bytes;
+			final String name;
+
+			Entry(byte[] bytes, String name) {
+				this.bytes = bytes;
+				this.name = name;
+			}
+		}
+
+		static {
+			String[] common = {
+				"Content-Length", "content-length", "Content-Type", "content-type",
+				"Content-Encoding", "content-encoding", "Cache-Control", "cache-control",
+				"Date", "date", "ETag", "etag", "Expires", "expires",
+				"Last-Modified", "last-modified", "Location", "location",
+				"X-Request-Id", "x-request-id", "X-Correlation-Id", "x-correlation-id"
+			};
+			for (String name : common) {
+				byte[] bytes = name.getBytes(utf8);
+				dictionary[slot(bytes, 0, bytes.length)] = new Entry(bytes, name);
+			}
+		}
+
+		private Names() {}
+
+		/**
+		 * Returns the name held in the given bytes, reusing a previously
+		 * decoded instance if there is one.
+		 */
+		static String intern(byte[] buffer, int offset, int length) {
+			int slot = slot(buffer, offset, length);
+			Entry e = dictionary[slot];
+			if (e!=null && equals(e.bytes, buffer, offset, length))
+				return e.name;
+			byte[] bytes = new byte[length];
+			System.arraycopy(buffer, offset, bytes, 0, length);
+			String name = new String(bytes, utf8);
+			dictionary[slot] = new Entry(bytes, name);
+			return name;
+		}
+
+		private static int slot(byte[] buffer, int offset, int length) {
+			int h = 0;
+			for (int i=0; i<length; i++)
+				h = 31*h + buffer[offset+i];
+			return (h ^ (h>>>16)) & (SLOTS-1);
+		}
+
+		private static boolean equals(byte[] a, byte[] b, int offset, int length) {
+			if (a.length!=length) return false;
+			for (int i=0; i<length; i++) {
+				if (a[i]!=b[offset+i]) return false;
+			}
+			return true;
+		}
+
+		static boolean isAscii(String s) {
+			for (int i=0; i<s.length(); i++) {
+				if (s.charAt(i)>=0x80) return false;
+			}
+			return true;
+		}
+
+		private static int lower(int c) {
+			return c>='A' && c<='Z' ? c+('a'-'A') : c;
+		}
+
+		static int hashIgnoreCase(byte[] buffer, int offset, int length) {
+			int h = 0;
+			for (int i=0; i<length; i++)
+				h = 31*h + lower(buffer[offset+i]&0xff);
+			return h ^ (h>>>16);
+		}
+
+		/**
+		 * Hashes an ASCII string to the same value as its UTF8 encoding.
+		 */
+		static int hashIgnoreCase(String s) {
+			int h = 0;
+			for (int i=0; i<s.length(); i++)
+				h = 31*h + lower(s.charAt(i));
+			return h ^ (h>>>16);
+		}
+
+		static boolean equalsIgnoreCase(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+			if (aLength!=bLength) return false;
+			for (int i=0; i<aLength; i++) {
+				if (lower(a[aOffset+i]&0xff)!=lower(b[bOffset+i]&0xff)) return false;
+			}
+			return true;
+		}
+
+		static boolean equalsIgnoreCase(byte[] a, byte[] b, int offset, int length) {
+			return equalsIgnoreCase(a, 0, a.length, b, offset, length);
+		}
+
+		/**
+		 * Compares an ASCII string with the UTF8 bytes of a name.
+		 */
+		static boolean equalsIgnoreCase(String s, byte[] b, int offset, int length) {
+			if (s.length()!=length) return false;
+			for (int i=0; i<length; i++) {
+				if (lower(s.charAt(i))!=lower(b[offset+i]&0xff)) return false;
+			}
+			return true;
+		}
+	}
+}
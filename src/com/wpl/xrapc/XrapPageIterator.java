@@ -0,0 +1,383 @@
+package com.wpl.xrapc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walks a collection that the server returns a page at a time, fetching
+ * pages ahead of the caller so that it isn't kept waiting a round trip
+ * for each one.
+ *
+ * Up to the prefetch count of pages are requested, or held waiting to be
+ * taken, at once. Pages selected by offset are independent, so they are
+ * requested together. Pages selected by a cursor from the previous reply
+ * are requested one after another, each as soon as the page before it
+ * arrives. Either way the caller receives the pages in order.
+ *
+ * The pages end at the first empty page, which isn't returned, or once
+ * the {@link Paging} says there are no more. A page with an error status
+ * ends them with a {@link CompletionException} wrapping an
+ * {@link XrapException}. Closing the iterator, or a stream from it,
+ * cancels the pages that were fetched ahead.
+ * @author tomq
+ */
+public final class XrapPageIterator implements Iterator<XrapReply>, AutoCloseable {
+	/**
+	 * Selects each page of a collection with request parameters.
+	 */
+	public interface Paging {
+		/**
+		 * Selects a page, by setting parameters on the request for it.
+		 * @param request The request for the page.
+		 * @param page The index of the page, from 0.
+		 * @param previous The reply with the page before, or null for the
+		 * first page, or if {@link #needsPrevious()} returns false.
+		 * @return false if there is no such page.
+		 */
+		boolean select(XrapGetRequest request, int page, XrapReply previous);
+
+		/**
+		 * Returns true if selecting a page needs the reply with the page
+		 * before, so that the pages can't be requested together.
+		 */
+		boolean needsPrevious();
+	}
+
+	private final XrapClient client;
+	private final XrapGetRequest template;
+	private final Paging paging;
+	private final int prefetch;
+	private volatile Predicate<XrapReply> emptyPage = r -> r.body==null || r.body.length==0;
+
+	// Guarded by this. The pages chosen, but not yet taken, in order.
+	private final ArrayDeque<CompletableFuture<XrapReply>> ahead;
+	private CompletableFuture<XrapReply> tail;
+	private int nextPage;
+	private boolean exhausted;
+	private boolean waiting;
+	// Set by fill while it registers the callback that waits for the tail
+	private boolean registering;
+	private boolean closed;
+
+	// Only used by the caller's thread
+	private XrapReply taken;
+	private int takenPage;
+
+	/**
+	 * Starts fetching the pages of a collection.
+	 * @param client The client with which to fetch the pages. It switches
+	 * to reactor mode if it isn't in it already.
+	 * @param request The GET for the collection. The request for each page
+	 * is a copy with the same resource, content type and parameters, and
+	 * then the parameters set by the paging. The conditions aren't copied,
+	 * since a page may be unchanged when the collection isn't, and nor is
+	 * any state a subclass of {@link XrapGetRequest} adds. Changes to the
+	 * request after this is called may not reach every page.
+	 * @param paging How the pages are selected.
+	 * @param prefetch The most pages to fetch ahead of the caller.
+	 */
+	public XrapPageIterator(XrapClient client, XrapGetRequest request, Paging paging, int prefetch) {
+		if (prefetch<1)
+			throw new IllegalArgumentException("Must prefetch at least 1 page");
+		this.client = client;
+		this.template = request;
+		this.paging = paging;
+		this.prefetch = prefetch;
+		this.ahead = new ArrayDeque<CompletableFuture<XrapReply>>(prefetch);
+		client.requireReactor();
+		List<PageRequest> chosen = new ArrayList<PageRequest>();
+		synchronized (this) {
+			fill(chosen);
+		}
+		send(chosen);
+	}
+
+	/**
+	 * Returns a paging that selects pages with an offset and a limit, such
+	 * as offset=2000&amp;limit=1000 for the third page of 1000.
+	 * @param offsetName The parameter holding the index of the first item.
+	 * @param limitName The parameter holding the number of items in a page.
+	 * @param limit The number of items in a page.
+	 */
+	public static Paging byOffset(String offsetName, String limitName, int limit) {
+		return new OffsetPaging(offsetName, limitName, limit);
+	}
+
+	/**
+	 * Returns a paging that selects each page after the first with a cursor
+	 * that the server returned in the metadata of the page before. The page
+	 * without a cursor is the last.
+	 * @param cursorName The parameter holding the cursor.
+	 * @param metadataName The metadata holding the cursor in the replies.
+	 */
+	public static Paging byCursor(String cursorName, String metadataName) {
+		return new CursorPaging(cursorName, metadataName);
+	}
+
+	/**
+	 * Sets how an empty page is recognised, which ends the pages. By
+	 * default that is a page with no body.
+	 */
+	public void setEmptyPage(Predicate<XrapReply> emptyPage) {
+		this.emptyPage = emptyPage;
+	}
+
+	/**
+	 * Returns true if there's another page, waiting for it if need be.
+	 * @throws CompletionException wrapping the {@link XrapException} if the
+	 * page couldn't be fetched.
+	 */
+	@Override
+	public boolean hasNext() {
+		if (taken!=null) return true;
+		CompletableFuture<XrapReply> f;
+		List<PageRequest> chosen = new ArrayList<PageRequest>();
+		synchronized (this) {
+			if (closed) return false;
+			// The page before has arrived, so a cursor page can be requested
+			if (ahead.isEmpty()) fill(chosen);
+			f = ahead.poll();
+			if (f!=null) fill(chosen);
+		}
+		send(chosen);
+		if (f==null) return false;
+		XrapReply reply;
+		try {
+			reply = f.join();
+		}
+		catch (CancellationException ex) {
+			// Closed by another thread
+			return false;
+		}
+		catch (CompletionException ex) {
+			close();
+			throw ex;
+		}
+		if (reply.statusCode/100!=2) {
+			close();
+			throw new CompletionException(new XrapException(String.format("Page %d of %s failed with %d %s",
+					takenPage, template.getResource(), reply.statusCode, reply.errorText)));
+		}
+		if (emptyPage.test(reply)) {
+			close();
+			return false;
+		}
+		taken = reply;
+		return true;
+	}
+
+	/**
+	 * Returns the next page, waiting for it if need be.
+	 * @throws CompletionException wrapping the {@link XrapException} if the
+	 * page couldn't be fetched.
+	 */
+	@Override
+	public XrapReply next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		XrapReply reply = taken;
+		taken = null;
+		takenPage++;
+		return reply;
+	}
+
+	/**
+	 * Returns a sequential stream of the pages. Closing the stream closes
+	 * this iterator, but nothing else does, even once the stream has been
+	 * used up or a short-circuiting operation has stopped early. So it must
+	 * be used in a try-with-resources statement, or the pages fetched ahead
+	 * are left outstanding.
+	 */
+	public Stream<XrapReply> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(this::close);
+	}
+
+	/**
+	 * Stops fetching pages, and cancels those fetched ahead.
+	 */
+	@Override
+	public void close() {
+		CompletableFuture<?>[] cancelled;
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			cancelled = ahead.toArray(new CompletableFuture<?>[ahead.size()]);
+			ahead.clear();
+		}
+		for (CompletableFuture<?> f : cancelled)
+			f.cancel(false);
+	}
+
+	/**
+	 * Chooses pages to request until enough are ahead of the caller. Each
+	 * takes its place in the queue straight away, but is only requested by
+	 * {@link #send(List)}. Guarded by this.
+	 * @param chosen Receives the pages to request.
+	 */
+	private void fill(List<PageRequest> chosen) {
+		while (!closed && !exhausted && ahead.size()<prefetch) {
+			XrapReply previous = null;
+			if (paging.needsPrevious() && tail!=null) {
+				if (!tail.isDone()) {
+					if (!waiting) {
+						waiting = true;
+						registering = true;
+						tail.whenComplete((r, ex) -> {
+							List<PageRequest> next = new ArrayList<PageRequest>();
+							synchronized (this) {
+								waiting = false;
+								// Completed as it was registered, so the fill
+								// that registered it carries on
+								if (registering) return;
+								fill(next);
+							}
+							send(next);
+						});
+						registering = false;
+					}
+					if (!tail.isDone()) return;
+				}
+				if (tail.isCompletedExceptionally()) {
+					exhausted = true;
+					return;
+				}
+				previous = tail.join();
+				if (isLast(previous)) {
+					exhausted = true;
+					return;
+				}
+			}
+			XrapGetRequest request = template.copyUnconditional();
+			if (!paging.select(request, nextPage, previous)) {
+				exhausted = true;
+				return;
+			}
+			CompletableFuture<XrapReply> f = new CompletableFuture<XrapReply>();
+			chosen.add(new PageRequest(request, f));
+			if (!paging.needsPrevious()) {
+				// No point asking for pages beyond one that ends them
+				f.whenComplete((r, ex) -> {
+					if (ex!=null || isLast(r)) {
+						synchronized (this) {
+							exhausted = true;
+						}
+					}
+				});
+			}
+			ahead.add(f);
+			tail = f;
+			nextPage++;
+		}
+	}
+
+	/**
+	 * Requests the pages chosen by {@link #fill(List)}. Must not hold this,
+	 * since sendAsync may wait for room in the client's in-flight window.
+	 */
+	private void send(List<PageRequest> chosen) {
+		for (PageRequest p : chosen) {
+			// Cancelled by close() before it could be requested
+			if (p.page.isDone()) continue;
+			CompletableFuture<XrapReply> f;
+			try {
+				f = client.sendAsync(p.request);
+			}
+			catch (XrapException ex) {
+				p.page.completeExceptionally(ex);
+				continue;
+			}
+			f.whenComplete((r, ex) -> {
+				if (ex==null) p.page.complete(r);
+				else p.page.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+			});
+			// Does nothing once f is done, and cancels it if the page was
+			// cancelled, even while it was being requested
+			p.page.whenComplete((r, ex) -> f.cancel(false));
+		}
+	}
+
+	private boolean isLast(XrapReply reply) {
+		return reply.statusCode/100!=2 || emptyPage.test(reply);
+	}
+
+	/**
+	 * A page chosen by {@link #fill(List)}, and the request for it.
+	 */
+	private static final class PageRequest {
+		final XrapGetRequest request;
+		final CompletableFuture<XrapReply> page;
+
+		PageRequest(XrapGetRequest request, CompletableFuture<XrapReply> page) {
+			this.request = request;
+			this.page = page;
+		}
+	}
+
+	private static final class OffsetPaging implements Paging {
+		private final String offsetName;
+		private final String limitName;
+		private final int limit;
+
+		OffsetPaging(String offsetName, String limitName, int limit) {
+			if (limit<1)
+				throw new IllegalArgumentException("Pages must hold at least 1 item");
+			this.offsetName = offsetName;
+			this.limitName = limitName;
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean select(XrapGetRequest request, int page, XrapReply previous) {
+			request.setParameter(offsetName, Long.toString((long)page*limit));
+			request.setParameter(limitName, Integer.toString(limit));
+			return true;
+		}
+
+		@Override
+		public boolean needsPrevious() {
+			return false;
+		}
+	}
+
+	private static final class CursorPaging implements Paging {
+		private final String cursorName;
+		private final String metadataName;
+
+		CursorPaging(String cursorName, String metadataName) {
+			this.cursorName = cursorName;
+			this.metadataName = metadataName;
+		}
+
+		@Override
+		public boolean select(XrapGetRequest request, int page, XrapReply previous) {
+			if (previous==null) return true;
+			if (previous.metadata==null) return false;
+			for (NameValuePair nvp : previous.metadata) {
+				if (nvp.getName().equalsIgnoreCase(metadataName)) {
+					byte[] cursor = nvp.getRawValue();
+					if (cursor==null || cursor.length==0) return false;
+					request.setParameter(cursorName, cursor);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean needsPrevious() {
+			return true;
+		}
+	}
+}
@@ -1,7 +1,5 @@
 package com.wpl.xrapc;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
@@ -10,6 +8,7 @@ import java.nio.ByteBuffer;
  */
 public class XrapPostRequest extends XrapRequest {
 	private String contentType;
+	private byte[] contentTypeBytes;
 	private byte[] contentBody;
 	
 	/**
@@ -27,6 +26,7 @@ public class XrapPostRequest extends XrapRequest {
 	 */
 	public void setContentType(String type) {
 		this.contentType = type;
+		this.contentTypeBytes = utf8(type);
 	}
 	
 	/**
@@ -54,13 +54,24 @@ public class XrapPostRequest extends XrapRequest {
 	}
 
 	@Override
-	void buildRequest(DataOutputStream dos) throws IOException {
-		dos.writeShort(Constants.SIGNATURE);
-		dos.writeByte(Constants.POST_COMMAND);
-		dos.writeInt(getRequestId());
-		writeString(dos, getResource());
-		writeString(dos, getContentType());
-		writeLongString(dos, getContentBody());
+	public XrapMethod getMethod() {
+		return XrapMethod.POST;
+	}
+	
+	@Override
+	int encodedSize() {
+		return 2 + 1 + 4 + stringSize(getResourceBytes()) + stringSize(contentTypeBytes) 
+				+ longStringSize(contentBody);
+	}
+	
+	@Override
+	void encode(ByteBuffer buffer) {
+		buffer.putShort(Constants.SIGNATURE);
+		buffer.put((byte)Constants.POST_COMMAND);
+		buffer.putInt(getRequestId());
+		putString(buffer, getResourceBytes());
+		putString(buffer, contentTypeBytes);
+		putLongString(buffer, contentBody);
 	}
 
 	@Override
@@ -1,7 +1,5 @@
 package com.wpl.xrapc;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Date;
 
@@ -12,7 +10,9 @@ import java.util.Date;
 public class XrapPutRequest extends XrapRequest {
 	private Date ifUnmodifiedSince;
 	private String ifMatch;
+	private byte[] ifMatchBytes;
 	private String contentType;
+	private byte[] contentTypeBytes;
 	private byte[] contentBody;
 	
 	/**
@@ -29,6 +29,7 @@ public class XrapPutRequest extends XrapRequest {
 	 */
 	public void setContentType(String type) {
 		this.contentType = type;
+		this.contentTypeBytes = utf8(type);
 	}
 	
 	/**
@@ -86,6 +87,7 @@ public class XrapPutRequest extends XrapRequest {
 	 */
 	public void setIfMatch(String etag) {
 		this.ifMatch = etag;
+		this.ifMatchBytes = utf8(etag);
 	}
 	
 	/**
@@ -101,18 +103,29 @@ public class XrapPutRequest extends XrapRequest {
 	
 	
 	@Override
-	void buildRequest(DataOutputStream dos) throws IOException {
-		dos.writeShort(Constants.SIGNATURE);
-		dos.writeByte(Constants.PUT_COMMAND);
-		dos.writeInt(getRequestId());
-		writeString(dos, getResource());
+	public XrapMethod getMethod() {
+		return XrapMethod.PUT;
+	}
+	
+	@Override
+	int encodedSize() {
+		return 2 + 1 + 4 + stringSize(getResourceBytes()) + 8 + stringSize(ifMatchBytes) 
+				+ stringSize(contentTypeBytes) + longStringSize(contentBody);
+	}
+	
+	@Override
+	void encode(ByteBuffer buffer) {
+		buffer.putShort(Constants.SIGNATURE);
+		buffer.put((byte)Constants.PUT_COMMAND);
+		buffer.putInt(getRequestId());
+		putString(buffer, getResourceBytes());
 		if (ifUnmodifiedSince!=null)
-			dos.writeLong(ifUnmodifiedSince.getTime());
+			buffer.putLong(ifUnmodifiedSince.getTime());
 		else
-			dos.writeLong(0);
-		writeString(dos, ifMatch);
-		writeString(dos, contentType);
-		writeLongString(dos, contentBody);
+			buffer.putLong(0);
+		putString(buffer, ifMatchBytes);
+		putString(buffer, contentTypeBytes);
+		putLongString(buffer, contentBody);
 	}
 
 	@Override
@@ -0,0 +1,699 @@
+package com.wpl.xrapc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Owns a single DEALER socket on a dedicated thread.
+ *
+ * Callers never touch the socket. Requests are handed over through a lock 
+ * free queue, and the reactor thread performs all sends and receives, completing the
+ * future associated with each request as its reply arrives. Futures are
+ * completed on the supplied callback executor, so that dependent actions
+ * never run on the reactor thread.
+ *
+ * Producers only enqueue. The reactor thread is woken at most once for
+ * however many requests are queued before it gets round to them, and 
+ * then sends them in batches.
+ *
+ * Requests awaiting a reply are held in a {@link PendingTable} that only
+ * the reactor thread touches. Each request is given its ID from the 
+ * reactor's own sequence as it is sent, so no ID is shared with any 
+ * other thread. 
+ *
+ * Deadlines are kept by a {@link HashedWheelTimer}. When a request's 
+ * deadline passes, its future fails with a timeout straight away, and the
+ * reactor is told to forget it. The same happens when its future is 
+ * cancelled. Any reply that arrives for it afterwards is counted as late
+ * and discarded without being decoded.
+ *
+ * A reactor can be drained rather than closed, in which case it carries on
+ * until every request already handed to it has completed, and then stops.
+ * @author tomq
+ */
+final class XrapReactor implements Runnable {
+	private final ZMQ.Socket sock;
+	private final String endpoint;
+	private final EndpointMonitor monitor;
+	private final Executor callbackExecutor;
+	private final MpscQueue<PendingRequest<?>> outgoing = new MpscQueue<PendingRequest<?>>();
+	// Requests that have already been completed elsewhere, and need forgetting
+	private final MpscQueue<PendingRequest<?>> abandoned = new MpscQueue<PendingRequest<?>>();
+	private final HashedWheelTimer timer;
+	private final PendingTable<PendingRequest<?>> pending;
+	private final Pipe.SourceChannel wakeupSource;
+	private final Pipe.SinkChannel wakeupSink;
+	private final ByteBuffer wakeupBuffer = ByteBuffer.allocate(64);
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private volatile boolean draining;
+	private volatile boolean closeSocketWhenDrained;
+	private PendingRequest<?> blocked;
+	// Only used by the reactor thread
+	private int nextRequestId = 1;
+	private volatile long lateReplyCount;
+	private volatile long orphanedCount;
+	private volatile long cancelledCount;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private volatile CircuitBreaker breaker;
+	// A moving average of the time from sending a request to its reply
+	private volatile long latencyNanos;
+	private volatile long latencySampledAt = System.nanoTime();
+	
+	/**
+	 * The maximum number of requests sent before replies are read again.
+	 * Bounding this stops the server's replies backing up behind a long 
+	 * burst of requests.
+	 */
+	private static final int SEND_BATCH = 64;
+	
+	private static final byte[] DELIMITER = new byte[0];
+	
+	/**
+	 * The weight given to each new latency sample is 1/LATENCY_DECAY.
+	 */
+	private static final int LATENCY_DECAY = 5;
+	
+	/**
+	 * The average latency halves every this many nanoseconds without a
+	 * new sample, so that an endpoint avoided for being slow is tried again.
+	 */
+	private static final long LATENCY_HALF_LIFE = 1000000000L;
+
+	/**
+	 * Turns a reply frame into the result a caller asked for.
+	 */
+	interface Decoder<R> {
+		R decode(XrapRequest request, byte[] frame) throws XrapException;
+	}
+	
+	/**
+	 * Fully decodes the reply, using the request's own parseResponse.
+	 */
+	static final Decoder<XrapReply> REPLY = XrapRequest::parseResponse;
+	
+	/**
+	 * Wraps the reply in a view, without decoding it.
+	 */
+	static final Decoder<XrapReplyView> VIEW = XrapReplyView::wrap;
+	
+	/**
+	 * Leaves the reply as it is, for decoding later.
+	 */
+	static final Decoder<byte[]> FRAME = (request, frame) -> frame;
+
+	/**
+	 * A request that has been handed to the reactor, together with the
+	 * future that will be completed with its reply.
+	 */
+	static class PendingRequest<R> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<PendingRequest> COMPLETED =
+				AtomicIntegerFieldUpdater.newUpdater(PendingRequest.class, "completed");
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<PendingRequest> FINISHED =
+				AtomicIntegerFieldUpdater.newUpdater(PendingRequest.class, "finished");
+		
+		final XrapRequest request;
+		final byte[] frame;
+		final long deadline;
+		final Decoder<R> decoder;
+		final CompletableFuture<R> future;
+		InFlightWindow window;
+		HashedWheelTimer.Timeout timeout;
+		// Assigned by the reactor when the request is sent
+		int requestId;
+		long sentAt;
+		boolean cancelled;
+		private volatile int completed;
+		private volatile int finished;
+
+		PendingRequest(XrapReactor reactor, XrapRequest request, byte[] frame, long deadline, Decoder<R> decoder) {
+			this.future = new ReplyFuture<R>(reactor, this);
+			this.request = request;
+			this.frame = frame;
+			this.deadline = deadline;
+			this.decoder = decoder;
+		}
+		
+		/**
+		 * Claims the right to complete the future. Only the first caller,
+		 * whether the reactor with the reply or the timer with a timeout,
+		 * succeeds.
+		 */
+		boolean claim() {
+			if (!COMPLETED.compareAndSet(this, 0, 1)) return false;
+			if (timeout!=null) timeout.cancel();
+			return true;
+		}
+		
+		boolean isClaimed() {
+			return completed!=0;
+		}
+		
+		/**
+		 * Claims the right to give back what the request holds of the
+		 * reactor and its window. Only the first caller succeeds, since a
+		 * request submitted as the reactor stops may be failed both by 
+		 * the reactor and by the thread that submitted it.
+		 */
+		boolean finish() {
+			return FINISHED.compareAndSet(this, 0, 1);
+		}
+		
+		/**
+		 * Decodes the reply, and completes the future with the result.
+		 */
+		void complete(byte[] reply) {
+			try {
+				future.complete(decoder.decode(request, reply));
+			}
+			catch (XrapException ex) {
+				future.completeExceptionally(ex);
+			}
+			catch (RuntimeException ex) {
+				// A malformed body, e.g. a BufferUnderflowException
+				future.completeExceptionally(new XrapException("Malformed reply", ex));
+			}
+		}
+	}
+
+	/**
+	 * The future of a request sent through a reactor. Cancelling it 
+	 * forgets the request straight away, so that it is never sent if it
+	 * hasn't been already, and any reply is discarded without being decoded.
+	 */
+	private static final class ReplyFuture<R> extends CompletableFuture<R> {
+		private final XrapReactor reactor;
+		private final PendingRequest<R> p;
+
+		ReplyFuture(XrapReactor reactor, PendingRequest<R> p) {
+			this.reactor = reactor;
+			this.p = p;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!p.claim()) return isCancelled();
+			super.cancel(mayInterruptIfRunning);
+			p.cancelled = true;
+			reactor.abandon(p);
+			return true;
+		}
+	}
+
+	/**
+	 * Creates a reactor and starts its thread.
+	 * @param sock The socket to take ownership of. No other thread may use
+	 * the socket once the reactor has been created.
+	 * @param endpoint The endpoint the socket is connected to, or null if unknown.
+	 * @param monitor The monitor of the socket, which the reactor thread reads,
+	 * or null if it isn't monitored.
+	 * @param callbackExecutor The executor on which futures are completed.
+	 * @param maxPending The maximum number of requests that can await a reply.
+	 * @param timer The timer that keeps request deadlines.
+	 */
+	XrapReactor(ZMQ.Socket sock, String endpoint, EndpointMonitor monitor, Executor callbackExecutor, 
+			int maxPending, HashedWheelTimer timer) {
+		this.sock = sock;
+		this.endpoint = endpoint;
+		this.monitor = monitor;
+		this.callbackExecutor = callbackExecutor;
+		this.timer = timer;
+		this.pending = new PendingTable<PendingRequest<?>>(maxPending, 
+				p -> fail(p, new XrapException("Too many requests in flight")));
+		try {
+			Pipe pipe = Pipe.open();
+			wakeupSource = pipe.source();
+			wakeupSink = pipe.sink();
+			wakeupSource.configureBlocking(false);
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Unable to create reactor wakeup pipe", ex);
+		}
+		thread = new Thread(this, "xrapc-reactor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Creates a request to be sent by this reactor, and starts the timer
+	 * that fails it once its deadline passes.
+	 * @param request The request.
+	 * @param frame The encoded request.
+	 * @param deadline The {@link System#nanoTime()} by which the reply must arrive.
+	 * @param decoder Turns the reply into the result of the future.
+	 */
+	<R> PendingRequest<R> newRequest(XrapRequest request, byte[] frame, long deadline, Decoder<R> decoder) {
+		PendingRequest<R> p = new PendingRequest<R>(this, request, frame, deadline, decoder);
+		p.timeout = timer.schedule(() -> expire(p), deadline);
+		return p;
+	}
+	
+	/**
+	 * Fails a request whose deadline has passed. Called on the timer thread.
+	 */
+	private void expire(PendingRequest<?> p) {
+		if (!p.claim()) return;
+		// The reactor thread tells the circuit breaker, once it knows 
+		// whether the request was ever sent
+		callbackExecutor.execute(() -> p.future.completeExceptionally(new XrapTimeoutException()));
+		abandon(p);
+	}
+	
+	/**
+	 * Tells the reactor thread to forget a request that has already been 
+	 * completed, by timing out or being cancelled.
+	 */
+	private void abandon(PendingRequest<?> p) {
+		abandoned.offer(p);
+		wakeup();
+	}
+	
+	/**
+	 * Queues an already encoded request for sending. Its future is 
+	 * completed with the reply, or fails with a timeout once its deadline
+	 * has passed.
+	 * @param p The request to send.
+	 */
+	void submit(PendingRequest<?> p) {
+		if (enqueue(p))
+			wakeup();
+	}
+	
+	/**
+	 * Queues a request like {@link #submit(PendingRequest)}, but without 
+	 * waking the reactor thread. This lets a burst of requests be queued 
+	 * with a single call to {@link #wakeup()} at the end.
+	 * @return false if the reactor has been closed, in which case the
+	 * request fails with an {@link XrapException}.
+	 */
+	boolean enqueue(PendingRequest<?> p) {
+		outstanding.incrementAndGet();
+		if (running) {
+			outgoing.offer(p);
+			if (running) return true;
+			// Lost a race with close(), and the reactor may or may not
+			// already have failed everything left in the queue.
+		}
+		fail(p, new XrapException("Client closed"));
+		return false;
+	}
+
+	/**
+	 * Returns the number of requests that have been submitted but not
+	 * yet completed.
+	 */
+	int outstanding() {
+		return outstanding.get();
+	}
+	
+	/**
+	 * Returns the endpoint the reactor's socket is connected to, or null if unknown.
+	 */
+	String endpoint() {
+		return endpoint;
+	}
+	
+	/**
+	 * Returns the socket owned by the reactor.
+	 */
+	ZMQ.Socket socket() {
+		return sock;
+	}
+	
+	/**
+	 * Returns true if the socket is known to have lost its connection to
+	 * the endpoint, or failed to make one.
+	 */
+	boolean isDown() {
+		return monitor!=null && monitor.isDown();
+	}
+	
+	/**
+	 * Returns true if the socket is connected to the endpoint, or 
+	 * isn't monitored, so can't tell.
+	 */
+	boolean isConnected() {
+		return monitor==null || monitor.isConnected();
+	}
+	
+	/**
+	 * Returns the circuit breaker guarding the endpoint, or null if there is none.
+	 */
+	CircuitBreaker breaker() {
+		return breaker;
+	}
+	
+	/**
+	 * Sets the circuit breaker guarding the endpoint.
+	 * @param breaker The breaker, or null for none.
+	 */
+	void setBreaker(CircuitBreaker breaker) {
+		this.breaker = breaker;
+	}
+	
+	/**
+	 * Decides whether a request may be sent with this reactor, which it 
+	 * may unless its circuit breaker is open.
+	 */
+	boolean allowRequest() {
+		CircuitBreaker b = breaker;
+		return b==null || b.allowRequest();
+	}
+	
+	/**
+	 * Gives up a request that {@link #allowRequest()} allowed, but that 
+	 * won't be submitted after all, so that if it was the circuit breaker's
+	 * probe another can be let through.
+	 * @param p The request, whose timer is stopped, or null if it was never created.
+	 */
+	void withdraw(PendingRequest<?> p) {
+		if (p!=null && !p.claim()) return;
+		CircuitBreaker b = breaker;
+		if (b!=null) b.recordCancelled();
+	}
+	
+	/**
+	 * Returns a moving average of the time taken for a reply to arrive, 
+	 * in nanoseconds. Requests that time out count as taking as long as 
+	 * they were waited for. This is 0 until the first reply arrives, and 
+	 * decays towards 0 while no replies arrive.
+	 */
+	long latency() {
+		long average = latencyNanos;
+		long halvings = (System.nanoTime() - latencySampledAt) / LATENCY_HALF_LIFE;
+		return halvings>=63 ? 0 : average >> halvings;
+	}
+	
+	/**
+	 * Returns the number of replies discarded because they arrived after 
+	 * their request had timed out or been evicted.
+	 */
+	long lateReplyCount() {
+		return lateReplyCount;
+	}
+	
+	/**
+	 * Returns the number of requests that timed out awaiting a reply.
+	 */
+	long orphanedCount() {
+		return orphanedCount;
+	}
+	
+	/**
+	 * Returns the number of requests cancelled before their reply arrived.
+	 */
+	long cancelledCount() {
+		return cancelledCount;
+	}
+	
+	/**
+	 * Returns the number of requests evicted because too many 
+	 * were awaiting a reply.
+	 */
+	long evictedCount() {
+		return pending.evictedCount();
+	}
+
+	/**
+	 * Returns true once the reactor thread has stopped, after which its
+	 * counters no longer change.
+	 */
+	boolean isStopped() {
+		return !thread.isAlive();
+	}
+
+	/**
+	 * Stops the reactor thread, failing any outstanding requests.
+	 * The socket is left open, and may be closed by the caller once this returns.
+	 */
+	void close() throws InterruptedException {
+		running = false;
+		signal();
+		thread.join();
+	}
+	
+	/**
+	 * Stops the reactor thread once every request already submitted has 
+	 * completed, without waiting for it to do so. Requests should no 
+	 * longer be submitted, and any that are fail once the thread stops.
+	 * @param closeSocket Whether the reactor thread closes the socket 
+	 * as it stops.
+	 */
+	void drain(boolean closeSocket) {
+		closeSocketWhenDrained = closeSocket;
+		draining = true;
+		signal();
+	}
+
+	@Override
+	public void run() {
+		// While a send is blocked by the high water mark, we additionally wait 
+		// for the socket to become writable, but carry on reading replies 
+		// so that the server is never blocked by us.
+		ZMQ.Poller readPoller = new ZMQ.Poller(3);
+		readPoller.register(sock, ZMQ.Poller.POLLIN);
+		readPoller.register(wakeupSource, ZMQ.Poller.POLLIN);
+		ZMQ.Poller writePoller = new ZMQ.Poller(3);
+		writePoller.register(sock, ZMQ.Poller.POLLIN | ZMQ.Poller.POLLOUT);
+		writePoller.register(wakeupSource, ZMQ.Poller.POLLIN);
+		if (monitor!=null) {
+			readPoller.register(monitor.socket(), ZMQ.Poller.POLLIN);
+			writePoller.register(monitor.socket(), ZMQ.Poller.POLLIN);
+		}
+		try {
+			while (running && !(draining && outstanding.get()==0)) {
+				ZMQ.Poller poller = blocked==null ? readPoller : writePoller;
+				poller.poll(pollTimeout());
+				if (poller.pollin(1)) {
+					drainWakeup();
+					// Must be cleared before the queue is read, so that any 
+					// request queued after we stop reading signals us again.
+					wakeupPending.set(false);
+				}
+				if (monitor!=null && poller.pollin(2))
+					monitor.drain();
+				if (poller.pollin(0))
+					receiveReplies();
+				forgetAbandoned();
+				flushOutgoing();
+			}
+		}
+		finally {
+			running = false;
+			failOutstanding(new XrapException("Client closed"));
+			try {
+				wakeupSource.close();
+				wakeupSink.close();
+			}
+			catch (IOException ex) {
+				// Nothing useful can be done
+			}
+			if (closeSocketWhenDrained) {
+				sock.close();
+				if (monitor!=null) monitor.close();
+			}
+		}
+	}
+
+	private long pollTimeout() {
+		// Deadlines are kept by the timer, which wakes us when one passes.
+		return blocked==null && !outgoing.isEmpty() ? 0 : -1;
+	}
+
+	/**
+	 * Wakes the reactor thread so that it sends any queued requests.
+	 * Only the first call since the reactor last woke up does anything.
+	 */
+	void wakeup() {
+		if (!wakeupPending.get() && wakeupPending.compareAndSet(false, true))
+			signal();
+	}
+	
+	private void signal() {
+		try {
+			wakeupSink.write(ByteBuffer.wrap(new byte[] { 0 }));
+		}
+		catch (IOException ex) {
+			// Only happens once the reactor has shut down the pipe.
+		}
+	}
+
+	private void drainWakeup() {
+		try {
+			do {
+				wakeupBuffer.clear();
+			} while (wakeupSource.read(wakeupBuffer)>0);
+		}
+		catch (IOException ex) {
+			// Only happens once the reactor has shut down the pipe.
+		}
+	}
+
+	private void flushOutgoing() {
+		for (int sent=0; sent<SEND_BATCH; ) {
+			PendingRequest<?> p = blocked;
+			blocked = null;
+			if (p==null) p = outgoing.poll();
+			if (p==null) return;
+			
+			if (p.isClaimed()) {
+				// Already timed out or cancelled while queued
+				finished(p);
+				continue;
+			}
+			int requestId = register(p);
+			if (!sock.send(DELIMITER, ZMQ.SNDMORE | ZMQ.DONTWAIT)) {
+				// Once the first part of a message has been accepted, the 
+				// remainder always will be, so this is the only place we can block.
+				pending.remove(requestId);
+				blocked = p;
+				return;
+			}
+			sock.send(p.frame, 0);
+			p.sentAt = System.nanoTime();
+			sent++;
+		}
+	}
+
+	/**
+	 * Adds the request to the pending table under the next ID in this 
+	 * reactor's sequence, and writes the ID into its frame. IDs still held 
+	 * by requests awaiting a reply are skipped, so that the sequence can 
+	 * safely wrap around. The ID 0 is never used.
+	 * @return The request ID.
+	 */
+	private int register(PendingRequest<?> p) {
+		int requestId;
+		do {
+			requestId = nextRequestId++;
+		} while (requestId==0 || !pending.put(requestId, p, p.deadline));
+		XrapRequest.patchRequestId(p.frame, requestId);
+		// Kept only on the attempt, since hedges, retries and coalesced 
+		// callers share the request across reactor threads.
+		p.requestId = requestId;
+		return requestId;
+	}
+
+	private void receiveReplies() {
+		byte[] responseBytes;
+		while ((responseBytes = sock.recv(ZMQ.DONTWAIT))!=null) {
+			// Depending on whether a REQ or DEALER is used, we might get an
+			// empty delimiter frame.
+			if (responseBytes.length==0)
+				responseBytes = sock.recv(0);
+			dispatch(responseBytes);
+		}
+	}
+
+	private void dispatch(byte[] responseBytes) {
+		// Only the fixed header is read on this thread. It tells us which 
+		// request owns the reply, and that request decodes the rest on the
+		// callback executor.
+		try {
+			ReplyDecoder.checkHeader(responseBytes);
+		}
+		catch (XrapException ex) {
+			// Can't tell who this belongs to, so there's nobody to report it to.
+			return;
+		}
+		if (!ReplyDecoder.isReplyCommand(ReplyDecoder.peekCommand(responseBytes))) return;
+		PendingRequest<?> p = pending.remove(ReplyDecoder.peekRequestId(responseBytes));
+		if (p!=null) {
+			finished(p);
+			sampleLatency(p);
+		}
+		if (p==null || !p.claim()) {
+			// Timed out or cancelled, but we hadn't yet been told to forget it.
+			lateReplyCount++;
+			return;
+		}
+		CircuitBreaker b = breaker;
+		if (b!=null) {
+			if (ReplyDecoder.peekStatusCode(responseBytes)>=500) b.recordFailure();
+			else b.recordSuccess();
+		}
+
+		callbackExecutor.execute(() -> p.complete(responseBytes));
+	}
+
+	private void finished(PendingRequest<?> p) {
+		if (!p.finish()) return;
+		outstanding.decrementAndGet();
+		if (p.window!=null)
+			p.window.release(p.frame.length);
+	}
+
+	/**
+	 * Forgets requests that have timed out or been cancelled while 
+	 * awaiting their reply. Any still queued for sending are skipped 
+	 * when they reach the head of the queue. Only a request that timed 
+	 * out after it was sent counts as a failure of the endpoint.
+	 */
+	private void forgetAbandoned() {
+		PendingRequest<?> p;
+		while ((p = abandoned.poll())!=null) {
+			boolean sent = p.requestId!=0 && pending.get(p.requestId)==p;
+			if (sent) {
+				pending.remove(p.requestId);
+				finished(p);
+			}
+			CircuitBreaker b = breaker;
+			if (p.cancelled) {
+				cancelledCount++;
+				if (b!=null) b.recordCancelled();
+			}
+			else if (sent) {
+				orphanedCount++;
+				sampleLatency(p);
+				if (b!=null) b.recordFailure();
+			}
+			else if (b!=null) {
+				// Timed out before it left the client, held back by the
+				// in-flight window or the socket, which says nothing about
+				// the endpoint. It may have been the probe, though.
+				b.recordCancelled();
+			}
+		}
+	}
+
+	private void sampleLatency(PendingRequest<?> p) {
+		long now = System.nanoTime();
+		long sample = now - p.sentAt;
+		long average = latency();
+		latencyNanos = average==0 ? sample : average + (sample - average)/LATENCY_DECAY;
+		latencySampledAt = now;
+	}
+
+	private void fail(PendingRequest<?> p, XrapException ex) {
+		finished(p);
+		if (!p.claim()) return;
+		// Neither a success nor a failure of the endpoint, but it may have been the probe
+		CircuitBreaker b = breaker;
+		if (b!=null) b.recordCancelled();
+		callbackExecutor.execute(() -> p.future.completeExceptionally(ex));
+	}
+
+	private void failOutstanding(XrapException ex) {
+		ArrayList<PendingRequest<?>> failed = new ArrayList<PendingRequest<?>>();
+		pending.clear(failed::add);
+		if (blocked!=null)
+			failed.add(blocked);
+		PendingRequest<?> p;
+		while ((p = outgoing.poll())!=null)
+			failed.add(p);
+		for (PendingRequest<?> f : failed)
+			fail(f, ex);
+	}
+}
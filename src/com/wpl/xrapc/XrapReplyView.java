@@ -0,0 +1,266 @@
+package com.wpl.xrapc;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A reply from an XRAP request, read in place from the received frame.
+ *
+ * Unlike {@link XrapReply}, nothing is copied or decoded up front. The
+ * body is a read-only view of the frame, and the etag, content type,
+ * location and metadata are only decoded when first asked for. This makes
+ * a large GET reply cost little more than the frame it arrived in, and
+ * a reply whose status code is all that matters cost almost nothing.
+ *
+ * The frame is checked when the view is created, so the accessors never
+ * fail. Like XrapReply, a view isn't safe for use by several threads at once.
+ * @author tomq
+ */
+public final class XrapReplyView {
+	private static Charset utf8 = Charset.forName("UTF8");
+	private static final int STATUS_OFFSET = ReplyDecoder.HEADER_LENGTH;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private final ByteBuffer frame;
+	private final int command;
+
+	// The offsets of each variable length field in the frame, or -1 if
+	// this kind of reply doesn't have that field.
+	private int errorTextOffset = -1;
+	private int locationOffset = -1;
+	private int etagOffset = -1;
+	private int dateOffset = -1;
+	private int contentTypeOffset = -1;
+	private int bodyOffset = -1;
+	private int metadataOffset = -1;
+
+	// Decoded on first use
+	private String errorText;
+	private String location;
+	private String etag;
+	private String contentType;
+	private XrapMetadata metadataMap;
+	private NameValuePair[] metadata;
+
+	private XrapReplyView(byte[] frame, int command) {
+		this.frame = ByteBuffer.wrap(frame);
+		this.command = command;
+	}
+
+	/**
+	 * Creates a view of a reply to the given request.
+	 * @param request The request that the reply is for.
+	 * @param frame The received reply frame. It is used as it is, and
+	 * must not be modified afterwards.
+	 * @throws XrapException if the frame isn't a well formed reply
+	 * to the request.
+	 */
+	static XrapReplyView wrap(XrapRequest request, byte[] frame) throws XrapException {
+		ReplyDecoder.checkHeader(frame);
+		int command = ReplyDecoder.peekCommand(frame);
+		if (!ReplyDecoder.isReplyTo(request.getMethod(), command))
+			throw new UnknownResponseCodeException(request.getMethod().name(), command);
+		XrapReplyView view = new XrapReplyView(frame, command);
+		try {
+			view.index();
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+			throw new XrapException("Malformed reply", ex);
+		}
+		return view;
+	}
+
+	/**
+	 * Finds the offset of each field, checking that the frame is long
+	 * enough to hold them. Only lengths are read, so nothing is allocated.
+	 */
+	private void index() {
+		frame.position(STATUS_OFFSET);
+		skip(2);
+		switch (command) {
+		case Constants.ERROR_COMMAND:
+			errorTextOffset = skipString();
+			break;
+		case Constants.GET_EMPTY_COMMAND:
+			break;
+		case Constants.GET_OK_COMMAND:
+			etagOffset = skipString();
+			dateOffset = skip(8);
+			contentTypeOffset = skipString();
+			bodyOffset = skipLongString();
+			metadataOffset = skipHash();
+			break;
+		case Constants.PUT_OK_COMMAND:
+			locationOffset = skipString();
+			etagOffset = skipString();
+			dateOffset = skip(8);
+			metadataOffset = skipHash();
+			break;
+		case Constants.POST_OK_COMMAND:
+			locationOffset = skipString();
+			etagOffset = skipString();
+			dateOffset = skip(8);
+			contentTypeOffset = skipString();
+			bodyOffset = skipLongString();
+			metadataOffset = skipHash();
+			break;
+		case Constants.DELETE_OK_COMMAND:
+			metadataOffset = skipHash();
+			break;
+		}
+	}
+
+	private int skip(int length) {
+		int offset = frame.position();
+		if (length<0 || length>frame.remaining()) throw new BufferUnderflowException();
+		frame.position(offset + length);
+		return offset;
+	}
+
+	private int skipString() {
+		int offset = frame.position();
+		skip(frame.get()&0xff);
+		return offset;
+	}
+
+	private int skipLongString() {
+		int offset = frame.position();
+		skip(frame.getInt());
+		return offset;
+	}
+
+	private int skipHash() {
+		int offset = frame.position();
+		int count = frame.getInt();
+		if (count<0) throw new BufferUnderflowException();
+		for (int i=0; i<count; i++) {
+			skipString();
+			skipLongString();
+		}
+		return offset;
+	}
+
+	private String stringAt(int offset) {
+		if (offset<0) return null;
+		int length = frame.get(offset)&0xff;
+		return new String(frame.array(), offset+1, length, utf8);
+	}
+
+	/**
+	 * Returns the ID of the request this is a reply to.
+	 */
+	public int getRequestId() {
+		return frame.getInt(ReplyDecoder.REQUEST_ID_OFFSET);
+	}
+
+	/**
+	 * Returns the status code of the reply.
+	 */
+	public short getStatusCode() {
+		return frame.getShort(STATUS_OFFSET);
+	}
+
+	/**
+	 * Returns true if the server replied with an error.
+	 */
+	public boolean isError() {
+		return command==Constants.ERROR_COMMAND;
+	}
+
+	/**
+	 * Returns the error text, or null if the reply isn't an error.
+	 */
+	public String getErrorText() {
+		if (errorText==null) errorText = stringAt(errorTextOffset);
+		return errorText;
+	}
+
+	/**
+	 * Returns the location of the resource, or null if the reply doesn't have one.
+	 */
+	public String getLocation() {
+		if (location==null) location = stringAt(locationOffset);
+		return location;
+	}
+
+	/**
+	 * Returns the etag of the resource, or null if the reply doesn't have one.
+	 */
+	public String getEtag() {
+		if (etag==null) etag = stringAt(etagOffset);
+		return etag;
+	}
+
+	/**
+	 * Returns the date the resource was last modified, or 0 if the reply
+	 * doesn't have one.
+	 */
+	public long getDateModified() {
+		return dateOffset<0 ? 0 : frame.getLong(dateOffset);
+	}
+
+	/**
+	 * Returns the content type of the body, or null if the reply doesn't have one.
+	 */
+	public String getContentType() {
+		if (contentType==null) contentType = stringAt(contentTypeOffset);
+		return contentType;
+	}
+
+	/**
+	 * Returns a read-only view of the body, without copying it.
+	 * The buffer is empty if the reply has no body.
+	 * Each call returns a new buffer, with its own position and limit.
+	 */
+	public ByteBuffer body() {
+		if (bodyOffset<0) return EMPTY.duplicate();
+		int length = frame.getInt(bodyOffset);
+		ByteBuffer body = frame.duplicate();
+		body.limit(bodyOffset + 4 + length).position(bodyOffset + 4);
+		return body.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the metadata of the reply, which can be looked up by name 
+	 * without decoding or copying all of it.
+	 * @return The metadata, which is empty if the reply has none.
+	 */
+	public XrapMetadata metadata() {
+		if (metadataMap==null) 
+			metadataMap = metadataOffset<0 ? XrapMetadata.EMPTY : XrapMetadata.read(frame.array(), metadataOffset);
+		return metadataMap;
+	}
+
+	/**
+	 * Returns a copy of the metadata of the reply as an array.
+	 * @return The metadata, which is empty if the reply has none.
+	 * @see #metadata()
+	 */
+	public NameValuePair[] getMetadata() {
+		if (metadata==null) metadata = metadata().toArray();
+		return metadata;
+	}
+
+	/**
+	 * Decodes the whole reply into an {@link XrapReply}, copying the body.
+	 */
+	public XrapReply toReply() {
+		XrapReply reply = new XrapReply();
+		reply.requestId = getRequestId();
+		reply.statusCode = getStatusCode();
+		reply.errorText = getErrorText();
+		reply.location = getLocation();
+		reply.etag = getEtag();
+		reply.dateModified = getDateModified();
+		reply.contentType = getContentType();
+		if (bodyOffset>=0) {
+			ByteBuffer body = body();
+			reply.body = new byte[body.remaining()];
+			body.get(reply.body);
+		}
+		if (metadataOffset>=0)
+			reply.metadata = getMetadata();
+		return reply;
+	}
+}
@@ -1,11 +1,9 @@
 package com.wpl.xrapc;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract base class for the classes that represent the 
@@ -16,22 +14,51 @@ public abstract class XrapRequest {
 	private static Charset utf8 = Charset.forName("UTF8");
 	
 	private String resource;
-	private int requestId;
-	private static AtomicInteger nextRequestId = new AtomicInteger(1);
+	private byte[] resourceBytes;
+	private volatile int requestId;
 	
 	protected XrapRequest(String resource) {
+		setResource(resource);
+	}
+	
+	/**
+	 * Constructs a request whose resource has already been encoded.
+	 */
+	XrapRequest(String resource, byte[] resourceBytes) {
 		this.resource = resource;
-		this.requestId = nextRequestId.getAndIncrement();
+		this.resourceBytes = resourceBytes;
 	}
 	
 	/** 
-	 * Returns the request ID for this request.
-	 * @return The request ID.
+	 * Returns the request ID for this request. IDs are assigned by the
+	 * client as each request is sent, so that they are unique among the 
+	 * requests it has in flight. If the same request is sent more than once,
+	 * this is the ID it was most recently sent with.
+	 * In reactor mode a request may be in flight several times at once, as
+	 * hedges, retries or coalesced GETs, so each attempt keeps its own ID
+	 * and none is recorded here.
+	 * @return The request ID, or 0 if the request hasn't been sent, or was
+	 * sent in reactor mode.
 	 */
 	public int getRequestId() {
 		return requestId;
 	}
 	
+	void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+	
+	/**
+	 * Writes a request ID into an already encoded request.
+	 */
+	static void patchRequestId(byte[] frame, int requestId) {
+		int offset = ReplyDecoder.REQUEST_ID_OFFSET;
+		frame[offset] = (byte)(requestId>>>24);
+		frame[offset+1] = (byte)(requestId>>>16);
+		frame[offset+2] = (byte)(requestId>>>8);
+		frame[offset+3] = (byte)requestId;
+	}
+	
 	/** 
 	 * Sets the resource that is the subject of the request.
 	 * This is a string of the form /a/b/c.
@@ -40,6 +67,7 @@ public abstract class XrapRequest {
 	 */
 	public void setResource(String resource) {
 		this.resource = resource;
+		this.resourceBytes = utf8(resource);
 	}
 	
 	/** 
@@ -50,40 +78,86 @@ public abstract class XrapRequest {
 		return resource;
 	}
 	
-	abstract void buildRequest(DataOutputStream dos) throws IOException;
+	/**
+	 * Returns the method of this request.
+	 */
+	public abstract XrapMethod getMethod();
+	
+	/**
+	 * Returns true if the request only wants a reply if the resource has
+	 * changed, or only acts if it hasn't.
+	 */
+	boolean isConditional() {
+		return false;
+	}
+	
+	/**
+	 * Returns the UTF8 encoding of the resource, which is cached 
+	 * so that it isn't repeated every time the request is sent.
+	 */
+	protected byte[] getResourceBytes() {
+		return resourceBytes;
+	}
+	
+	/**
+	 * Returns the exact number of bytes that {@link #encode(ByteBuffer)}
+	 * will write.
+	 */
+	abstract int encodedSize();
+	
+	/**
+	 * Writes the request to the buffer, which must have at least
+	 * {@link #encodedSize()} bytes remaining.
+	 * @throws IllegalArgumentException if a string is too long to encode.
+	 */
+	abstract void encode(ByteBuffer buffer);
 	abstract XrapReply parseResponse(ByteBuffer response) throws XrapException;
 	
+	/**
+	 * Encodes the request into a new array of exactly the right size.
+	 * The array is handed to ZeroMQ as it is, without being copied.
+	 */
+	byte[] encode() {
+		byte[] frame = new byte[encodedSize()];
+		encode(ByteBuffer.wrap(frame));
+		return frame;
+	}
+	
 	XrapReply parseResponse(byte[] responseBytes) throws XrapException {
 		ByteBuffer response = ByteBuffer.wrap(responseBytes);
 		response.order(ByteOrder.BIG_ENDIAN);
 		return parseResponse(response);
 	}
 	
-	protected void writeString(DataOutputStream dos, String s) throws IOException {
-		writeString(dos, s==null ? null : s.getBytes(utf8));
+	protected static byte[] utf8(String s) {
+		return s==null ? null : s.getBytes(utf8);
+	}
+	
+	protected static int stringSize(byte[] bytes) {
+		return 1 + (bytes==null ? 0 : bytes.length);
+	}
+	
+	protected static int longStringSize(byte[] bytes) {
+		return 4 + (bytes==null ? 0 : bytes.length);
 	}
 
-	protected void writeString(DataOutputStream dos, byte[] bytes) throws IOException {
+	protected static void putString(ByteBuffer buffer, byte[] bytes) {
 		if (bytes==null) {
-			dos.writeByte(0);
+			buffer.put((byte)0);
 			return;
 		}
 		if (bytes.length>255) throw new IllegalArgumentException();
-		dos.writeByte(bytes.length);
-		dos.write(bytes);
-	}
-	
-	protected void writeLongString(DataOutputStream dos, String s) throws IOException {
-		writeLongString(dos, s==null ? null : s.getBytes(utf8));
+		buffer.put((byte)bytes.length);
+		buffer.put(bytes);
 	}
 	
-	protected void writeLongString(DataOutputStream dos, byte[] bytes) throws IOException {
+	protected static void putLongString(ByteBuffer buffer, byte[] bytes) {
 		if (bytes==null) {
-			dos.writeInt(0);
+			buffer.putInt(0);
 			return;
 		}
-		dos.writeInt(bytes.length);
-		dos.write(bytes);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
 	}
 	
 	protected void checkSignature(ByteBuffer dis) throws XrapException {
@@ -108,6 +182,23 @@ public abstract class XrapRequest {
 		return new String(stringBytes, utf8);
 	}
 	
+	/**
+	 * Reads a metadata name, reusing the String from a previous reply 
+	 * where possible. 
+	 */
+	protected String readName(ByteBuffer dis) {
+		int length = dis.get()&0xff;
+		if (!dis.hasArray()) {
+			byte[] stringBytes = new byte[length];
+			dis.get(stringBytes);
+			return new String(stringBytes, utf8);
+		}
+		if (length>dis.remaining()) throw new BufferUnderflowException();
+		String name = XrapMetadata.Names.intern(dis.array(), dis.arrayOffset()+dis.position(), length);
+		dis.position(dis.position()+length);
+		return name;
+	}
+	
 	protected byte[] readLongBinaryString(ByteBuffer dis) {
 		int length = dis.getInt();
 		if (length > dis.remaining()) {
@@ -128,7 +219,7 @@ public abstract class XrapRequest {
 		
 		NameValuePair[] result = new NameValuePair[count];
 		for (int i=0; i<count; i++) {
-			String name = readString(buffer);
+			String name = readName(buffer);
 			result[i] = new NameValuePair(name, readLongBinaryString(buffer));
 		}
 		return result;
@@ -0,0 +1,318 @@
+package com.wpl.xrapc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells listeners when resources change, by polling them with conditional
+ * GETs, since XRAP servers can't push changes to clients.
+ *
+ * However many listeners watch a resource, it is polled once, so the cost
+ * of watching grows with the number of resources rather than listeners.
+ * Every resource is polled from the client's shared timer, rather than by
+ * a thread of its own.
+ *
+ * How often a resource is polled adapts to how often it changes. The
+ * interval is halved each time a poll finds a change, and grows by a
+ * quarter each time it doesn't, between the minimum and maximum intervals.
+ * A failed poll doubles it. Each interval is jittered by up to a fifth
+ * either way, so that resources watched together don't stay in step.
+ * @author tomq
+ */
+public final class XrapResourceWatcher {
+	/**
+	 * Told when a watched resource changes.
+	 */
+	public interface Listener {
+		/**
+		 * Called with the state of the resource once it is known, and then
+		 * each time it changes. An error reply, such as a 404 once the
+		 * resource has been deleted, is a state like any other. Polls that
+		 * fail, or get a 5xx reply, are retried without telling anyone.
+		 * Called on the client's callback executor, so must be quick. The
+		 * states arrive in order; one that is overtaken by a newer state
+		 * isn't told at all.
+		 * @param resource The resource that changed.
+		 * @param reply The reply that showed the change. It is shared by
+		 * every listener of the resource, so mustn't be modified.
+		 */
+		void changed(String resource, XrapReply reply);
+	}
+
+	private static final short NOT_MODIFIED = 304;
+
+	private final XrapClient client;
+	private final Executor executor;
+	private final long minInterval;
+	private final long maxInterval;
+	private final HashedWheelTimer timer = HashedWheelTimer.shared();
+	private final ConcurrentHashMap<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+	private final AtomicLong pollCount = new AtomicLong();
+	private volatile boolean closed;
+
+	/**
+	 * Creates a watcher that polls each resource between once a second
+	 * and once a minute.
+	 * @param client The client with which to poll. It switches to reactor
+	 * mode if it isn't in it already.
+	 */
+	public XrapResourceWatcher(XrapClient client) {
+		this(client, 1, 60, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Creates a watcher.
+	 * @param client The client with which to poll. It switches to reactor
+	 * mode if it isn't in it already.
+	 * @param minInterval The shortest time between polls of a resource, which
+	 * is also the time between the first polls.
+	 * @param maxInterval The longest time between polls of a resource.
+	 * @param unit The unit of the intervals.
+	 */
+	public XrapResourceWatcher(XrapClient client, long minInterval, long maxInterval, TimeUnit unit) {
+		if (minInterval<=0 || maxInterval<minInterval)
+			throw new IllegalArgumentException("Intervals must be positive, and the maximum at least the minimum");
+		this.client = client;
+		this.minInterval = unit.toNanos(minInterval);
+		this.maxInterval = unit.toNanos(maxInterval);
+		this.executor = client.requireReactor();
+	}
+
+	/**
+	 * Starts telling a listener about changes to a resource. If the
+	 * resource isn't already being watched, it is polled straight away.
+	 * @param resource The resource to watch.
+	 * @param listener The listener to tell. A listener may watch several
+	 * resources.
+	 * @throws IllegalStateException if the watcher has been closed.
+	 */
+	public void watch(String resource, Listener listener) {
+		while (true) {
+			if (closed) throw new IllegalStateException("Watcher closed");
+			Watch w = watches.get(resource);
+			if (w!=null) {
+				if (w.add(listener)) break;
+				// Its last listener left, but it hasn't yet been removed
+				watches.remove(resource, w);
+				continue;
+			}
+			w = new Watch(resource);
+			w.add(listener);
+			if (watches.putIfAbsent(resource, w)!=null) continue;
+			w.poll();
+			break;
+		}
+		// Lost a race with close, which didn't see the watch
+		if (closed) close();
+	}
+
+	/**
+	 * Stops telling a listener about changes to a resource. Once a
+	 * resource has no listeners it is no longer polled.
+	 * @return true if the listener was watching the resource.
+	 */
+	public boolean unwatch(String resource, Listener listener) {
+		Watch w = watches.get(resource);
+		return w!=null && w.remove(listener);
+	}
+
+	/**
+	 * Stops watching every resource. The client isn't closed.
+	 */
+	public void close() {
+		closed = true;
+		for (Watch w : watches.values())
+			w.close();
+	}
+
+	/**
+	 * Returns the number of resources being watched.
+	 */
+	public int getResourceCount() {
+		return watches.size();
+	}
+
+	/**
+	 * Returns the number of polls that have been sent.
+	 */
+	public long getPollCount() {
+		return pollCount.get();
+	}
+
+	/**
+	 * A listener of one resource, and the state it was last told.
+	 */
+	private static final class Subscription {
+		private final Listener listener;
+		// Guarded by this
+		private long version;
+
+		Subscription(Listener listener) {
+			this.listener = listener;
+		}
+
+		/**
+		 * Tells the listener about a state, unless it has already been told
+		 * about a newer one. The state when it joins and the changes after
+		 * are told on different threads, so may arrive in either order.
+		 */
+		synchronized void tell(String resource, XrapReply reply, long version) {
+			if (version<=this.version) return;
+			this.version = version;
+			try {
+				listener.changed(resource, reply);
+			}
+			catch (RuntimeException ex) {
+				// One broken listener mustn't stop the others being told
+			}
+		}
+	}
+
+	/**
+	 * A watched resource, and its listeners.
+	 */
+	private final class Watch {
+		private final String resource;
+		// Guarded by this
+		private final List<Subscription> listeners = new ArrayList<Subscription>(2);
+		private boolean closed;
+		private XrapReply current;
+		// Incremented with each change of the current state
+		private long version;
+		private long interval = minInterval;
+		private HashedWheelTimer.Timeout next;
+		private CompletableFuture<XrapReply> poll;
+
+		Watch(String resource) {
+			this.resource = resource;
+		}
+
+		/**
+		 * Adds a listener, unless the last one has already left.
+		 */
+		synchronized boolean add(Listener listener) {
+			if (closed) return false;
+			Subscription s = new Subscription(listener);
+			listeners.add(s);
+			XrapReply r = current;
+			long v = version;
+			if (r!=null)
+				executor.execute(() -> s.tell(resource, r, v));
+			return true;
+		}
+
+		boolean remove(Listener listener) {
+			synchronized (this) {
+				if (!removeSubscription(listener)) return false;
+				if (!listeners.isEmpty()) return true;
+			}
+			close();
+			return true;
+		}
+
+		// Guarded by this
+		private boolean removeSubscription(Listener listener) {
+			for (int i=0; i<listeners.size(); i++) {
+				if (listeners.get(i).listener.equals(listener)) {
+					listeners.remove(i);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void close() {
+			HashedWheelTimer.Timeout t;
+			CompletableFuture<XrapReply> f;
+			synchronized (this) {
+				closed = true;
+				listeners.clear();
+				t = next;
+				f = poll;
+			}
+			watches.remove(resource, this);
+			if (t!=null) t.cancel();
+			if (f!=null) f.cancel(false);
+		}
+
+		void poll() {
+			XrapGetRequest request = new XrapGetRequest(resource);
+			synchronized (this) {
+				if (closed) return;
+				next = null;
+				// Conditions only make sense against a representation
+				if (current!=null && current.statusCode==200) {
+					if (current.etag!=null) request.setIfNoneMatch(current.etag);
+					if (current.dateModified!=0) request.setIfModifiedSince(new Date(current.dateModified));
+				}
+			}
+			CompletableFuture<XrapReply> f;
+			try {
+				f = client.sendAsync(request);
+			}
+			catch (XrapException | RuntimeException ex) {
+				polled(null, ex);
+				return;
+			}
+			pollCount.incrementAndGet();
+			boolean abandoned;
+			synchronized (this) {
+				poll = f;
+				abandoned = closed;
+			}
+			if (abandoned) f.cancel(false);
+			f.whenComplete(this::polled);
+		}
+
+		private void polled(XrapReply reply, Throwable ex) {
+			List<Subscription> changed = null;
+			long v = 0;
+			synchronized (this) {
+				poll = null;
+				if (closed) return;
+				if (ex!=null || reply.statusCode>=500) {
+					interval = Math.min(maxInterval, interval*2);
+				}
+				else if (isChange(reply)) {
+					interval = Math.max(minInterval, interval/2);
+					current = reply;
+					v = ++version;
+					changed = new ArrayList<Subscription>(listeners);
+				}
+				else {
+					interval = Math.min(maxInterval, interval + interval/4);
+				}
+				long delay = (long)(interval * ThreadLocalRandom.current().nextDouble(0.8, 1.2));
+				// The timer thread mustn't send the request itself.
+				next = timer.schedule(() -> executor.execute(this::poll), System.nanoTime() + delay);
+			}
+			if (changed!=null) {
+				for (Subscription s : changed)
+					s.tell(resource, reply, v);
+			}
+		}
+
+		/**
+		 * Returns true if the reply shows a different state from the
+		 * current one. Guarded by this.
+		 */
+		private boolean isChange(XrapReply reply) {
+			if (reply.statusCode==NOT_MODIFIED) return false;
+			XrapReply c = current;
+			if (c==null || c.statusCode!=reply.statusCode) return true;
+			if (c.etag!=null && reply.etag!=null) return !c.etag.equals(reply.etag);
+			return c.dateModified!=reply.dateModified
+					|| !Objects.equals(c.errorText, reply.errorText)
+					|| !Arrays.equals(c.body, reply.body);
+		}
+	}
+}
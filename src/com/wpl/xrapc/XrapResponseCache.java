@@ -0,0 +1,444 @@
+package com.wpl.xrapc;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of the replies to GET requests, which an {@link XrapClient}
+ * uses to turn repeated GETs into conditional GETs.
+ *
+ * Replies are cached by resource, parameters and content type, as the
+ * frames they arrived in, so a reply served from the cache costs no more
+ * than one received from the server. When a GET is repeated, it is sent
+ * with the etag and modification date of the cached reply, and if the
+ * server replies "304 Not Modified" the caller is given the cached reply
+ * instead. A reply served from the cache is the reply that filled it,
+ * so carries its request ID.
+ *
+ * By default every GET goes to the server, but a cached reply can be
+ * trusted without asking for a while, and served for a while longer
+ * while it is revalidated in the background. "404 Not Found" replies can
+ * also be cached, for a while, so that a missing resource isn't asked
+ * for over and over again.
+ *
+ * Any PUT, POST or DELETE sent by the client invalidates the cached
+ * replies for its resource, and for a POST the resource it created. The
+ * cache knows nothing of changes made by anyone else, beyond what
+ * revalidation tells it.
+ *
+ * Once the cached replies take more than the cache's budget of bytes,
+ * those least recently used are evicted. GETs that are already conditional,
+ * and those sent by {@link XrapClient#sendAll(java.util.Collection)},
+ * bypass the cache. A cache may be shared by several clients, as long as
+ * they are clients of the same resources.
+ * @author tomq
+ * @see XrapClient#setResponseCache(XrapResponseCache)
+ */
+public final class XrapResponseCache {
+	// A rough cost of the objects around each cached frame
+	private static final int ENTRY_OVERHEAD = 128;
+	// The most resources whose last invalidation is remembered
+	private static final int MAX_INVALIDATED = 4096;
+
+	private final long maxBytes;
+	private volatile long freshNanos;
+	private volatile long staleNanos;
+	private volatile long notFoundNanos;
+
+	// Guarded by this
+	private final LinkedHashMap<RequestKey, Entry> entries = new LinkedHashMap<RequestKey, Entry>(16, 0.75f, true);
+	private final Map<String, List<Entry>> byResource = new HashMap<String, List<Entry>>();
+	private long bytes;
+	// Counts invalidations. Each reply is stored only if its resource
+	// hasn't been invalidated since its GET was sent, going by the
+	// generation at which each recently invalidated resource last was.
+	// Replies to GETs sent before the floor are never stored, which covers
+	// resources that have dropped off the end, and clear().
+	private long generation;
+	private long floorGeneration;
+	private final LinkedHashMap<String, Long> invalidated = new LinkedHashMap<String, Long>();
+	private long hitCount;
+	private long revalidatedCount;
+	private long missCount;
+	private long evictedCount;
+
+	/**
+	 * Creates an empty cache.
+	 * @param maxBytes The most bytes of replies to cache.
+	 */
+	public XrapResponseCache(long maxBytes) {
+		if (maxBytes<1) throw new IllegalArgumentException("maxBytes must be positive");
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets how long a cached reply is served without asking the server
+	 * whether it has changed. By default it is always asked.
+	 */
+	public void setFreshFor(long time, TimeUnit unit) {
+		if (time<0) throw new IllegalArgumentException("time must not be negative");
+		freshNanos = unit.toNanos(time);
+	}
+
+	/**
+	 * Sets how long a cached reply is still served once it is no longer
+	 * fresh. During this time, a GET for it is answered straight away,
+	 * and the reply revalidated in the background. By default none is.
+	 * Clients that aren't in reactor mode, and only have one socket,
+	 * revalidate before answering instead.
+	 */
+	public void setStaleWhileRevalidate(long time, TimeUnit unit) {
+		if (time<0) throw new IllegalArgumentException("time must not be negative");
+		staleNanos = unit.toNanos(time);
+	}
+
+	/**
+	 * Sets how long a "404 Not Found" reply is cached for. By default
+	 * they aren't cached.
+	 */
+	public void setNotFoundFor(long time, TimeUnit unit) {
+		if (time<0) throw new IllegalArgumentException("time must not be negative");
+		notFoundNanos = unit.toNanos(time);
+	}
+
+	/**
+	 * Forgets every cached reply for the given resource, whatever its
+	 * parameters and content type.
+	 */
+	public synchronized void invalidate(String resource) {
+		generation++;
+		invalidated.remove(resource);
+		invalidated.put(resource, generation);
+		if (invalidated.size()>MAX_INVALIDATED) {
+			Iterator<Long> it = invalidated.values().iterator();
+			floorGeneration = it.next();
+			it.remove();
+		}
+		List<Entry> list = byResource.remove(resource);
+		if (list==null) return;
+		for (Entry e : list) {
+			entries.remove(e.key);
+			bytes -= e.size;
+		}
+	}
+
+	/**
+	 * Forgets every cached reply.
+	 */
+	public synchronized void clear() {
+		generation++;
+		floorGeneration = generation;
+		invalidated.clear();
+		entries.clear();
+		byResource.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Returns the number of bytes of replies cached.
+	 */
+	public synchronized long getSize() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of replies cached.
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of GETs answered from the cache without waiting
+	 * for the server.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of GETs answered from the cache after the server
+	 * replied that the resource hadn't changed.
+	 */
+	public synchronized long getRevalidatedCount() {
+		return revalidatedCount;
+	}
+
+	/**
+	 * Returns the number of GETs that had to fetch the whole resource.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the number of replies evicted to keep within the budget.
+	 */
+	public synchronized long getEvictedCount() {
+		return evictedCount;
+	}
+
+	/**
+	 * Looks up the cached reply for a GET.
+	 * @param background true if a stale reply can be revalidated in the
+	 * background.
+	 * @return How to answer the request, or null if the cache can't help.
+	 */
+	Lookup lookup(XrapRequest request, boolean background) {
+		if (request.getMethod()!=XrapMethod.GET || request.isConditional()) return null;
+		RequestKey key = RequestKey.of(request);
+		long now = System.nanoTime();
+		synchronized (this) {
+			Entry e = entries.get(key);
+			if (e!=null) {
+				long age = now - e.validatedAt;
+				if (e.notFound) {
+					if (age < notFoundNanos) {
+						hitCount++;
+						return new Lookup(this, key, request, e, Lookup.FRESH);
+					}
+					remove(e);
+					e = null;
+				}
+				else if (age < freshNanos) {
+					hitCount++;
+					return new Lookup(this, key, request, e, Lookup.FRESH);
+				}
+				else if (background && age - freshNanos < staleNanos) {
+					hitCount++;
+					// Only the first to find it stale revalidates it
+					boolean revalidate = !e.revalidating;
+					e.revalidating = true;
+					return new Lookup(this, key, request, e, revalidate ? Lookup.STALE : Lookup.FRESH);
+				}
+			}
+			return new Lookup(this, key, request, e, Lookup.SEND);
+		}
+	}
+
+	/**
+	 * Returns a decoder that invalidates the cached replies for the
+	 * resource of a PUT, POST or DELETE once it has been sent, and
+	 * again when its reply arrives.
+	 */
+	<R> XrapReactor.Decoder<R> invalidating(XrapRequest request, XrapReactor.Decoder<R> decoder) {
+		String resource = request.getResource();
+		invalidate(resource);
+		return (r, frame) -> {
+			invalidate(resource);
+			if (ReplyDecoder.peekCommand(frame)==Constants.POST_OK_COMMAND) {
+				String location = XrapReplyView.wrap(r, frame).getLocation();
+				if (location!=null && !location.isEmpty()) invalidate(location);
+			}
+			return decoder.decode(r, frame);
+		};
+	}
+
+	private synchronized void store(RequestKey key, Entry e, long sentGeneration) {
+		// If the resource was invalidated since the request was sent, the
+		// reply may be out of date
+		if (sentGeneration<floorGeneration) return;
+		Long invalidatedAt = invalidated.get(key.resource);
+		if (invalidatedAt!=null && invalidatedAt>sentGeneration) return;
+		Entry old = entries.get(key);
+		if (old!=null) remove(old);
+		entries.put(key, e);
+		List<Entry> list = byResource.get(key.resource);
+		if (list==null) {
+			list = new ArrayList<Entry>(1);
+			byResource.put(key.resource, list);
+		}
+		list.add(e);
+		bytes += e.size;
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes>maxBytes && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			unindex(eldest);
+			bytes -= eldest.size;
+			evictedCount++;
+		}
+	}
+
+	private synchronized void revalidated(Entry e) {
+		e.validatedAt = System.nanoTime();
+		e.revalidating = false;
+		revalidatedCount++;
+		// Counts as a use
+		entries.get(e.key);
+	}
+
+	private synchronized void missed() {
+		missCount++;
+	}
+
+	private synchronized void revalidationFailed(Entry e) {
+		e.revalidating = false;
+	}
+
+	// Must hold this
+	private void remove(Entry e) {
+		if (entries.get(e.key)!=e) return;
+		entries.remove(e.key);
+		unindex(e);
+		bytes -= e.size;
+	}
+
+	// Must hold this
+	private void unindex(Entry e) {
+		List<Entry> list = byResource.get(e.key.resource);
+		if (list==null) return;
+		list.remove(e);
+		if (list.isEmpty()) byResource.remove(e.key.resource);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("entries=%d bytes=%d hits=%d revalidated=%d misses=%d evicted=%d",
+				entries.size(), bytes, hitCount, revalidatedCount, missCount, evictedCount);
+	}
+
+	/**
+	 * A cached reply.
+	 */
+	private static final class Entry {
+		final RequestKey key;
+		final PreparedXrapRequest prepared;
+		final byte[] frame;
+		final String etag;
+		final long dateModified;
+		final boolean notFound;
+		final int size;
+		// Guarded by the cache
+		long validatedAt;
+		boolean revalidating;
+
+		Entry(RequestKey key, PreparedXrapRequest prepared, byte[] frame, String etag, long dateModified, boolean notFound) {
+			this.key = key;
+			this.prepared = prepared;
+			this.frame = frame;
+			this.etag = etag;
+			this.dateModified = dateModified;
+			this.notFound = notFound;
+			this.size = frame.length + key.encoded.length + ENTRY_OVERHEAD;
+			this.validatedAt = System.nanoTime();
+		}
+
+		/**
+		 * Returns a GET for the same thing that only fetches it if it has
+		 * changed.
+		 */
+		XrapRequest conditionalRequest() {
+			if (etag==null && dateModified==0) return prepared.newRequest();
+			return prepared.newRequest(etag, dateModified==0 ? null : new Date(dateModified));
+		}
+	}
+
+	/**
+	 * The outcome of looking up a GET, which is either answered from
+	 * the cache, or sent and its reply used to update the cache.
+	 */
+	static final class Lookup {
+		static final int FRESH = 0;
+		static final int STALE = 1;
+		static final int SEND = 2;
+
+		private final XrapResponseCache cache;
+		private final RequestKey key;
+		private final XrapRequest request;
+		private final Entry entry;
+		private final int state;
+		private final long generation;
+
+		// Must be created holding the cache
+		private Lookup(XrapResponseCache cache, RequestKey key, XrapRequest request, Entry entry, int state) {
+			this.cache = cache;
+			this.key = key;
+			this.request = request;
+			this.entry = entry;
+			this.state = state;
+			this.generation = cache.generation;
+		}
+
+		/**
+		 * Returns true if the request can be answered from the cache
+		 * straight away.
+		 */
+		boolean isHit() {
+			return state!=SEND;
+		}
+
+		/**
+		 * Returns true if the cached reply must be revalidated in
+		 * the background.
+		 */
+		boolean mustRevalidate() {
+			return state==STALE;
+		}
+
+		/**
+		 * Answers the request with the cached reply.
+		 */
+		<R> R serve(XrapReactor.Decoder<R> decoder) throws XrapException {
+			return decoder.decode(request, entry.frame);
+		}
+
+		/**
+		 * Returns the request to send, which is conditional if there is
+		 * a cached reply.
+		 */
+		XrapRequest request() {
+			return entry==null || entry.notFound ? request : entry.conditionalRequest();
+		}
+
+		/**
+		 * Returns a decoder that updates the cache from the reply, and
+		 * answers with the cached reply if the server says it is unchanged.
+		 */
+		<R> XrapReactor.Decoder<R> decoder(XrapReactor.Decoder<R> decoder) {
+			return (r, frame) -> {
+				int command = ReplyDecoder.peekCommand(frame);
+				if (command==Constants.GET_EMPTY_COMMAND && entry!=null && !entry.notFound) {
+					cache.revalidated(entry);
+					return decoder.decode(r, entry.frame);
+				}
+				R result = decoder.decode(r, frame);
+				if (command==Constants.GET_OK_COMMAND) {
+					cache.missed();
+					XrapReplyView view = XrapReplyView.wrap(r, frame);
+					String etag = view.getEtag();
+					if (etag!=null && etag.isEmpty()) etag = null;
+					// Not worth keeping if it can't be revalidated or trusted
+					if (etag==null && view.getDateModified()==0 
+							&& cache.freshNanos==0 && cache.staleNanos==0) 
+						return result;
+					PreparedXrapRequest prepared = entry!=null
+							? entry.prepared : new PreparedXrapRequest(request, key.encoded);
+					cache.store(key, new Entry(key, prepared, frame, etag, view.getDateModified(), false), generation);
+				}
+				else if (command==Constants.ERROR_COMMAND && cache.notFoundNanos>0
+						&& ReplyDecoder.peekStatusCode(frame)==404) {
+					cache.store(key, new Entry(key, null, frame, null, 0, true), generation);
+				}
+				else if (entry!=null) {
+					cache.revalidationFailed(entry);
+				}
+				return result;
+			};
+		}
+
+		/**
+		 * Lets someone else revalidate the cached reply, after a
+		 * revalidation failed to get a reply.
+		 */
+		void revalidationFailed() {
+			if (entry!=null) cache.revalidationFailed(entry);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.wpl.xrapc;
+
+/**
+ * A snapshot of the statistics of one endpoint of an {@link XrapShardedClient}.
+ * @author tomq
+ */
+public class XrapShardStatistics {
+	private final String endpoint;
+	private final double share;
+	private final long requests;
+	private final XrapClientStatistics clientStatistics;
+	
+	XrapShardStatistics(String endpoint, double share, long requests, XrapClientStatistics clientStatistics) {
+		this.endpoint = endpoint;
+		this.share = share;
+		this.requests = requests;
+		this.clientStatistics = clientStatistics;
+	}
+	
+	/**
+	 * Returns the endpoint.
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+	
+	/**
+	 * Returns the fraction of the hash ring owned by the endpoint, which is
+	 * the fraction of keys it can expect to own, between 0 and 1.
+	 */
+	public double getShare() {
+		return share;
+	}
+	
+	/**
+	 * Returns the number of requests routed to the endpoint.
+	 */
+	public long getRequests() {
+		return requests;
+	}
+	
+	/**
+	 * Returns the statistics of the client through which the endpoint's 
+	 * requests are sent.
+	 */
+	public XrapClientStatistics getClientStatistics() {
+		return clientStatistics;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s share=%.3f requests=%d %s", 
+				endpoint, share, requests, clientStatistics);
+	}
+}
@@ -0,0 +1,413 @@
+package com.wpl.xrapc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.zeromq.ZMQ;
+
+/**
+ * A client for a resource space partitioned across several XRAP servers.
+ *
+ * Each request is routed to the server that owns its resource, using a
+ * consistent hash ring. Every endpoint is placed on the ring at a number
+ * of pseudo-random points (virtual nodes), and a resource belongs to the
+ * endpoint at the first point after the hash of its key. Adding or
+ * removing an endpoint therefore only moves the keys that it gains or
+ * loses, which is about 1/n of them, and the virtual nodes keep the share
+ * of each endpoint even.
+ *
+ * By default the key is the whole resource path. With
+ * {@link #setKeySegments(int)} it can instead be a prefix of the path,
+ * so that, for example, everything under /tenant/x is kept together.
+ *
+ * Each endpoint has its own {@link XrapClient} in reactor mode, which can
+ * be had from {@link #clientFor(String)} for anything not covered here.
+ * @author tomq
+ */
+public class XrapShardedClient {
+	/**
+	 * The default number of points on the ring for each endpoint.
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	private final ZMQ.Context context;
+	private final int virtualNodes;
+	private final Lock lock = new ReentrantLock();
+	private volatile Ring ring = new Ring(new long[0], new Shard[0]);
+	private volatile int keySegments;
+	// Guarded by lock
+	private long timeout = 30;
+	private TimeUnit timeoutUnit = TimeUnit.SECONDS;
+	// Guarded by lock. Shards of removed endpoints, which may still be
+	// draining. Once one has drained it is dropped.
+	private final List<Shard> retired = new ArrayList<Shard>();
+
+	/**
+	 * An endpoint, and the client through which its requests are sent.
+	 */
+	private static final class Shard {
+		final String endpoint;
+		final XrapClient client;
+		final AtomicLong requests = new AtomicLong();
+
+		Shard(String endpoint, XrapClient client) {
+			this.endpoint = endpoint;
+			this.client = client;
+		}
+	}
+
+	/**
+	 * The points on the ring in ascending order, and the shard at each.
+	 * Never modified once built, so it can be read without locking.
+	 */
+	private static final class Ring {
+		final long[] points;
+		final Shard[] owners;
+
+		Ring(long[] points, Shard[] owners) {
+			this.points = points;
+			this.owners = owners;
+		}
+
+		Shard lookup(long hash) {
+			int i = Arrays.binarySearch(points, hash);
+			if (i<0) i = -i-1;
+			return owners[i==points.length ? 0 : i];
+		}
+	}
+
+	/**
+	 * Creates a sharded client using a newly created ZMQ context.
+	 * @param endpoints The endpoints to shard resources across, each of the
+	 * form tcp://hostname/port.
+	 */
+	public XrapShardedClient(Collection<String> endpoints) {
+		this(ZMQ.context(1), endpoints, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Creates a sharded client.
+	 * @param zmqContext A ZMQ.Context in which to create the ZMQ sockets.
+	 * @param endpoints The endpoints to shard resources across, each of the
+	 * form tcp://hostname/port.
+	 * @param virtualNodes The number of points on the ring for each endpoint.
+	 * More points share out the keys more evenly, at the cost of memory.
+	 */
+	public XrapShardedClient(ZMQ.Context zmqContext, Collection<String> endpoints, int virtualNodes) {
+		if (virtualNodes<1) throw new IllegalArgumentException("virtualNodes must be positive");
+		this.context = zmqContext;
+		this.virtualNodes = virtualNodes;
+		for (String endpoint : endpoints)
+			addEndpoint(endpoint);
+	}
+
+	/**
+	 * Sets how much of the resource path is hashed to choose its endpoint.
+	 * For example, with 2 segments /tenant/x/items/1 is hashed as /tenant/x.
+	 * @param segments The number of leading path segments, or 0 for the
+	 * whole path, which is the default.
+	 */
+	public void setKeySegments(int segments) {
+		if (segments<0) throw new IllegalArgumentException("segments must not be negative");
+		this.keySegments = segments;
+	}
+
+	/**
+	 * Sets the timeout for requests to every endpoint.
+	 * This is 30 seconds by default.
+	 * @see XrapClient#setTimeout(long, TimeUnit)
+	 */
+	public void setTimeout(long count, TimeUnit units) {
+		lock.lock();
+		try {
+			timeout = count;
+			timeoutUnit = units;
+			for (Shard s : shards())
+				s.client.setTimeout(count, units);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds an endpoint to the ring. It takes over about 1/n of the keys,
+	 * evenly from each of the other endpoints. Requests already sent
+	 * elsewhere for those keys are unaffected.
+	 * @param endpoint The endpoint to connect to.
+	 * @throws IllegalArgumentException if the endpoint is already on the ring.
+	 */
+	public void addEndpoint(String endpoint) {
+		lock.lock();
+		try {
+			List<Shard> shards = shards();
+			for (Shard s : shards) {
+				if (s.endpoint.equals(endpoint))
+					throw new IllegalArgumentException("Already sharding to " + endpoint);
+			}
+			XrapClient client = new XrapClient(context, endpoint);
+			client.setTimeout(timeout, timeoutUnit);
+			client.enableReactor();
+			shards.add(new Shard(endpoint, client));
+			ring = build(shards);
+			pruneRetired();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an endpoint from the ring, so that its keys are shared out
+	 * among the others. Requests already sent to it still receive their
+	 * replies, after which its socket is closed.
+	 * @param endpoint The endpoint to remove.
+	 * @return false if the endpoint wasn't on the ring.
+	 */
+	public boolean removeEndpoint(String endpoint) {
+		lock.lock();
+		try {
+			List<Shard> shards = shards();
+			for (Shard s : shards) {
+				if (s.endpoint.equals(endpoint)) {
+					shards.remove(s);
+					ring = build(shards);
+					s.client.removeEndpoint(endpoint);
+					retired.add(s);
+					pruneRetired();
+					return true;
+				}
+			}
+			return false;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the retired shards whose clients have drained, and so have
+	 * nothing left to close. Must hold lock.
+	 */
+	private void pruneRetired() {
+		for (Iterator<Shard> it = retired.iterator(); it.hasNext(); ) {
+			if (it.next().client.isDrained())
+				it.remove();
+		}
+	}
+
+	/**
+	 * Returns the endpoints on the ring.
+	 */
+	public List<String> getEndpoints() {
+		List<String> result = new ArrayList<String>();
+		for (Shard s : distinct(ring))
+			result.add(s.endpoint);
+		return result;
+	}
+
+	/**
+	 * Waits until every endpoint on the ring is connected.
+	 * @return false if some still aren't when the timeout expires.
+	 * @see XrapClient#awaitConnected(long, TimeUnit)
+	 */
+	public boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Shard s : distinct(ring)) {
+			long wait = Math.max(deadline - System.nanoTime(), 0);
+			if (!s.client.awaitConnected(wait, TimeUnit.NANOSECONDS)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the endpoint that owns the given resource.
+	 * @throws XrapException if there are no endpoints.
+	 */
+	public String endpointFor(String resource) throws XrapException {
+		return shardFor(resource).endpoint;
+	}
+
+	/**
+	 * Returns the client for the endpoint that owns the given resource.
+	 * @throws XrapException if there are no endpoints.
+	 */
+	public XrapClient clientFor(String resource) throws XrapException {
+		return shardFor(resource).client;
+	}
+
+	/**
+	 * Sends the request to the endpoint that owns its resource, and blocks
+	 * waiting for the reply.
+	 * @see XrapClient#send(XrapRequest)
+	 */
+	public XrapReply send(XrapRequest request) throws XrapException, InterruptedException {
+		return route(request).send(request);
+	}
+
+	/**
+	 * Sends the request to the endpoint that owns its resource, and blocks
+	 * waiting for the reply, which is returned as a view of the received frame.
+	 * @see XrapClient#sendView(XrapRequest)
+	 */
+	public XrapReplyView sendView(XrapRequest request) throws XrapException, InterruptedException {
+		return route(request).sendView(request);
+	}
+
+	/**
+	 * Sends the request to the endpoint that owns its resource, without
+	 * waiting for the reply.
+	 * @see XrapClient#sendAsync(XrapRequest)
+	 */
+	public CompletableFuture<XrapReply> sendAsync(XrapRequest request) throws XrapException {
+		return route(request).sendAsync(request);
+	}
+
+	/**
+	 * Sends the request to the endpoint that owns its resource, without
+	 * waiting for the reply, which is returned as a view of the received frame.
+	 * @see XrapClient#sendAsyncView(XrapRequest)
+	 */
+	public CompletableFuture<XrapReplyView> sendAsyncView(XrapRequest request) throws XrapException {
+		return route(request).sendAsyncView(request);
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of each endpoint on the ring.
+	 */
+	public List<XrapShardStatistics> getShardStatistics() {
+		Ring r = ring;
+		List<Shard> shards = distinct(r);
+		// Each point owns the arc of the ring back to the point before it.
+		double[] share = new double[shards.size()];
+		long[] points = r.points;
+		for (int i=0; i<points.length; i++) {
+			long arc = points[i] - points[i==0 ? points.length-1 : i-1];
+			if (points.length==1) arc = -1;
+			share[shards.indexOf(r.owners[i])] += unsigned(arc) / 0x1p64;
+		}
+		List<XrapShardStatistics> result = new ArrayList<XrapShardStatistics>(shards.size());
+		for (int i=0; i<shards.size(); i++) {
+			Shard s = shards.get(i);
+			result.add(new XrapShardStatistics(s.endpoint, share[i], s.requests.get(),
+					s.client.getStatistics()));
+		}
+		return result;
+	}
+
+	/**
+	 * Closes the client of every endpoint, including any that have been
+	 * removed but are still draining. Any requests still awaiting a reply fail.
+	 */
+	public void close() throws InterruptedException {
+		List<Shard> all;
+		lock.lock();
+		try {
+			all = shards();
+			all.addAll(retired);
+		}
+		finally {
+			lock.unlock();
+		}
+		for (Shard s : all)
+			s.client.close();
+	}
+
+	private XrapClient route(XrapRequest request) throws XrapException {
+		Shard s = shardFor(request.getResource());
+		s.requests.incrementAndGet();
+		return s.client;
+	}
+
+	private Shard shardFor(String resource) throws XrapException {
+		Ring r = ring;
+		if (r.points.length==0) throw new XrapException("No endpoints");
+		return r.lookup(hash(resource, 0, keyLength(resource, keySegments)));
+	}
+
+	/**
+	 * Returns the length of the first segments of the path, not counting
+	 * the slash after them, or the whole length if there are no more.
+	 */
+	static int keyLength(String resource, int segments) {
+		if (segments==0) return resource.length();
+		int end = resource.startsWith("/") ? 1 : 0;
+		for (int i=0; i<segments; i++) {
+			int slash = resource.indexOf('/', end);
+			if (slash<0) return resource.length();
+			end = slash+1;
+		}
+		return end-1;
+	}
+
+	/**
+	 * Hashes part of a string with 64 bit FNV-1a, followed by the
+	 * finalizer of MurmurHash3 to spread the bits over the ring.
+	 */
+	static long hash(String s, int offset, int length) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=offset; i<offset+length; i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h>>>33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h>>>33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h>>>33;
+		return h;
+	}
+
+	private static double unsigned(long value) {
+		return value>=0 ? value : (value>>>1) * 2.0;
+	}
+
+	// Must hold lock
+	private List<Shard> shards() {
+		return distinct(ring);
+	}
+
+	private static List<Shard> distinct(Ring r) {
+		List<Shard> result = new ArrayList<Shard>();
+		for (Shard s : r.owners) {
+			if (!result.contains(s))
+				result.add(s);
+		}
+		return result;
+	}
+
+	private Ring build(List<Shard> shards) {
+		int n = shards.size() * virtualNodes;
+		Integer[] order = new Integer[n];
+		long[] hashes = new long[n];
+		Shard[] byPoint = new Shard[n];
+		int k = 0;
+		for (Shard s : shards) {
+			for (int i=0; i<virtualNodes; i++) {
+				String node = s.endpoint + "#" + i;
+				hashes[k] = hash(node, 0, node.length());
+				byPoint[k] = s;
+				order[k] = k;
+				k++;
+			}
+		}
+		Arrays.sort(order, Comparator.comparingLong(i -> hashes[i]));
+		long[] points = new long[n];
+		Shard[] owners = new Shard[n];
+		for (int i=0; i<n; i++) {
+			int j = order[i];
+			points[i] = hashes[j];
+			owners[i] = byPoint[j];
+		}
+		return new Ring(points, owners);
+	}
+}
@@ -0,0 +1,12 @@
+package com.wpl.xrapc;
+
+/**
+ * Thrown when the reply to a request doesn't arrive before its deadline.
+ */
+public class XrapTimeoutException extends XrapException {
+	private static final long serialVersionUID = -3209436517340858227L;
+
+	public XrapTimeoutException() {
+		super("Timeout");
+	}
+}
@@ -1,8 +1,12 @@
 package com.wpl.xrapc.cli;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -24,6 +28,8 @@ import com.wpl.xrapc.XrapRequest;
  */
 abstract class BaseCommand {
 	private static Charset utf8 = Charset.forName("UTF8");
+	// Lets a body be written without copying it onto the heap first
+	private static FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
 	
 	/**
 	 * Represents an individual name value pair that
@@ -60,6 +66,10 @@ abstract class BaseCommand {
 	protected boolean printRequestBody=false;
 	protected boolean printResponseHeader=true;
 	protected boolean printResponseBody=true;
+	protected ResponseCacheFile cache;
+	// The key under which replies for the resource are cached, which also
+	// identifies the server. Null unless there is a cache.
+	protected String cacheKey;
 	
 	public abstract String getName();
 	
@@ -95,6 +105,15 @@ abstract class BaseCommand {
 		printResponseBody = b;
 	}
 	
+	/**
+	 * Sets the file in which replies to GET requests are cached. Other
+	 * requests invalidate the cached replies for their resource.
+	 * The default is not to cache anything.
+	 */
+	public void setCache(ResponseCacheFile cache) {
+		this.cache = cache;
+	}
+	
 	/**
 	 * Sets the resource on which the request will operate. 
 	 */
@@ -145,10 +164,28 @@ abstract class BaseCommand {
 	 * Runs the command using the given XrapClient object.
 	 */
 	public void run(XrapClient client) throws UsageException, XrapException, InterruptedException {
+		cacheKey = cache==null ? null : client.getEndpoints() + " " + resource;
 		XrapRequest request = buildRequest();
 		if (printRequestHeader || printRequestBody)
 			System.out.println("\n\n");
-		printReply(client.send(request));
+		XrapReply reply = client.send(request);
+		printReply(reply);
+		if (cacheKey!=null) {
+			try {
+				updateCache(reply);
+			}
+			catch (IOException ex) {
+				System.err.printf("Cache: %s%n", ex.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Updates the cache once the reply has been printed. Any request 
+	 * other than a GET invalidates the cached replies for its resource.
+	 */
+	protected void updateCache(XrapReply reply) throws IOException {
+		cache.invalidate(cacheKey);
 	}
 	
 	/**
@@ -195,31 +232,10 @@ abstract class BaseCommand {
 		return baos.toByteArray();
 	}
 	
-	private void printReply(XrapReply reply) {
+	protected void printReply(XrapReply reply) {
 		if (printResponseHeader) {
-			System.out.println(reply.statusCode);
-			if (reply.errorText!=null) 
-				System.out.println(reply.errorText);
-			
-			if (reply.contentType!=null) {
-				System.out.printf("Content-type: %s%n", reply.contentType);
-			}
-			if (reply.dateModified!=0) {
-				System.out.printf("Date-Modified: %tc%n", new Date(reply.dateModified));
-			}
-			if (reply.etag!=null) {
-				System.out.printf("ETag: %s%n", reply.etag);
-			}
-			if (reply.location!=null) {
-				System.out.printf("Location: %s%n", reply.location);
-			}
-			
-			if (reply.metadata!=null) {
-				for (NameValuePair nvp : reply.metadata) {
-					System.out.printf("%s : %s%n",  nvp.getName(), nvp.getStringValue());
-				}
-			}
-			System.out.println();
+			printHeaders(reply.statusCode, reply.errorText, reply.contentType, reply.dateModified,
+					reply.etag, reply.location, reply.metadata);
 		}
 		
 		if (reply.body!=null && printResponseBody) {
@@ -227,11 +243,49 @@ abstract class BaseCommand {
 		}
 	}
 	
+	protected void printHeaders(int statusCode, String errorText, String contentType, long dateModified,
+			String etag, String location, NameValuePair[] metadata) {
+		System.out.println(statusCode);
+		if (errorText!=null) 
+			System.out.println(errorText);
+		
+		if (contentType!=null) {
+			System.out.printf("Content-type: %s%n", contentType);
+		}
+		if (dateModified!=0) {
+			System.out.printf("Date-Modified: %tc%n", new Date(dateModified));
+		}
+		if (etag!=null) {
+			System.out.printf("ETag: %s%n", etag);
+		}
+		if (location!=null) {
+			System.out.printf("Location: %s%n", location);
+		}
+		
+		if (metadata!=null) {
+			for (NameValuePair nvp : metadata) {
+				System.out.printf("%s : %s%n",  nvp.getName(), nvp.getStringValue());
+			}
+		}
+		System.out.println();
+	}
+	
 	protected void printBody(byte[] body) {
 		// For now assume textual UTF8
 		System.out.println(new String(body, utf8));
 	}
 	
+	/**
+	 * Prints a body held outside the heap, such as in a mapped file, 
+	 * without copying it.
+	 */
+	protected void printBody(ByteBuffer body) throws IOException {
+		System.out.flush();
+		while (body.hasRemaining())
+			stdout.write(body);
+		System.out.println();
+	}
+	
 	/**
 	 * Returns true if the given string is a valid method name
 	 */
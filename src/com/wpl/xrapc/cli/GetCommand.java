@@ -1,7 +1,10 @@
 package com.wpl.xrapc.cli;
 
+import java.io.IOException;
+import java.util.Date;
+
 import com.wpl.xrapc.XrapGetRequest;
-import com.wpl.xrapc.XrapRequest;
+import com.wpl.xrapc.XrapReply;
 
 /**
  * Command object representing a GET request.
@@ -11,7 +14,73 @@ class GetCommand extends BaseCommand {
 	@Override
 	public String getName() { return "GET"; }
 	
-	protected XrapRequest buildRequest() throws UsageException {
+	// The cached reply the GET was made conditional on, if any
+	private ResponseCacheFile.CachedReply cached;
+	private String variant;
+	
+	/**
+	 * Prints the cached reply if the server says it is still current.
+	 */
+	@Override
+	protected void printReply(XrapReply reply) {
+		if (cached==null || reply.statusCode!=304) {
+			super.printReply(reply);
+			return;
+		}
+		if (printResponseHeader) {
+			printHeaders(reply.statusCode, "Not modified, cached reply follows", cached.contentType, 
+					cached.dateModified, cached.etag, null, cached.metadata);
+		}
+		if (printResponseBody) {
+			try {
+				printBody(cached.body);
+			}
+			catch (IOException ex) {
+				System.err.printf("Cache: %s%n", ex.getMessage());
+			}
+		}
+	}
+	
+	@Override
+	protected void updateCache(XrapReply reply) throws IOException {
+		if (reply.statusCode==200 && (reply.etag!=null || reply.dateModified!=0))
+			cache.put(cacheKey, variant, reply);
+	}
+	
+	/**
+	 * Makes the GET conditional on the cached reply, if there is one.
+	 * Conditions given on the command line are left alone.
+	 */
+	private void applyCache(XrapGetRequest request) {
+		cached = null;
+		variant = variant(request);
+		if (request.getIfNoneMatch()!=null || request.getIfModifiedSince()!=null) return;
+		try {
+			cached = cache.get(cacheKey, variant);
+		}
+		catch (IOException ex) {
+			System.err.printf("Cache: %s%n", ex.getMessage());
+		}
+		if (cached!=null) {
+			if (cached.etag!=null) request.setIfNoneMatch(cached.etag);
+			if (cached.dateModified!=0) request.setIfModifiedSince(new Date(cached.dateModified));
+		}
+	}
+	
+	/**
+	 * Returns what distinguishes the reply to this GET from the replies to
+	 * other GETs for the same resource.
+	 */
+	private static String variant(XrapGetRequest request) {
+		StringBuilder result = new StringBuilder();
+		if (request.getContentType()!=null)
+			result.append(request.getContentType());
+		for (XrapGetRequest.Parameter p : request.getParameters())
+			result.append('\n').append(p.getName()).append('=').append(p.getStringValue());
+		return result.toString();
+	}
+	
+	protected XrapGetRequest buildRequest() throws UsageException {
 		XrapGetRequest request = new XrapGetRequest(resource);
 		for (HeaderItem itm : headerItems) {
 			if (itm.name.equalsIgnoreCase("if-modified-since") || 
@@ -40,6 +109,8 @@ class GetCommand extends BaseCommand {
 			throw new UsageException(String.format("GET only supports string data items (%s)", itm.name));
 		}
 		
+		if (cacheKey!=null)
+			applyCache(request);
 		printRequest(request);
 		return request;
 	}
@@ -54,7 +125,7 @@ class GetCommand extends BaseCommand {
 				System.out.printf("If-Modified-Since : %tc%n", request.getIfModifiedSince());
 			}
 			if (request.getIfNoneMatch()!=null) {
-				System.out.printf("If-None-Match : %tc%n", request.getIfNoneMatch());
+				System.out.printf("If-None-Match : %s%n", request.getIfNoneMatch());
 			}
 			for (XrapGetRequest.Parameter p : request.getParameters()) {
 				System.out.printf("%s = %s%n", 
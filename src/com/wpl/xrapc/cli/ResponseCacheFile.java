@@ -0,0 +1,445 @@
+package com.wpl.xrapc.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.wpl.xrapc.NameValuePair;
+import com.wpl.xrapc.XrapReply;
+
+/**
+ * A cache of GET replies kept in a file, so that each run of the command
+ * line tools can make conditional GETs using what earlier runs fetched.
+ *
+ * The file is a header followed by records, which are only ever appended.
+ * A record is either a reply, or marks every reply for a resource as
+ * invalid. Each process maps the file, and indexes the latest record for
+ * each request, so a cached body is served straight from the mapping
+ * without being copied onto the heap.
+ *
+ * Several processes may use the file at once. Appending is done holding a
+ * lock on a separate lock file, and a record only becomes visible once the
+ * end recorded in the header is moved past it, so readers need no lock.
+ * Once the file grows past its limit, the newest records are copied into
+ * a new file, which replaces the old one. Anyone with the old file mapped
+ * carries on reading it until they next look for changes. A replacement is
+ * noticed by the file's key where the file system has them, and otherwise
+ * by the generation in the header, which each compaction increments.
+ * @author tomq
+ */
+final class ResponseCacheFile implements Closeable {
+	/**
+	 * The default limit on the size of the file.
+	 */
+	static final long DEFAULT_MAX_BYTES = 64L*1024*1024;
+
+	private static final Charset utf8 = Charset.forName("UTF8");
+	private static final int MAGIC = 0x58524331;
+	private static final int GENERATION_OFFSET = 4;
+	private static final int END_OFFSET = 8;
+	private static final int HEADER_LENGTH = 16;
+	private static final byte REPLY = 1;
+	private static final byte INVALIDATE = 2;
+	// Strings are stored with a 2 byte length
+	private static final int MAX_STRING_LENGTH = 0xffff;
+
+	private final Path path;
+	private final Path lockPath;
+	private final long maxBytes;
+	private FileChannel channel;
+	private Object fileKey;
+	private boolean useFileKeys = true;
+	private int generation;
+	// Whether this process holds the lock
+	private boolean locked;
+	private MappedByteBuffer map;
+	private long end = HEADER_LENGTH;
+	// The offset of the latest record for each resource, and each
+	// request for it.
+	private Map<String, Map<String, Integer>> index = new HashMap<String, Map<String, Integer>>();
+
+	/**
+	 * Opens the cache file, creating it if it doesn't exist.
+	 * @param maxBytes The size beyond which the file is compacted.
+	 */
+	ResponseCacheFile(Path path, long maxBytes) throws IOException {
+		if (maxBytes<HEADER_LENGTH || maxBytes>Integer.MAX_VALUE)
+			throw new IllegalArgumentException("maxBytes out of range");
+		this.path = path.toAbsolutePath();
+		this.lockPath = this.path.resolveSibling(this.path.getFileName() + ".lock");
+		this.maxBytes = maxBytes;
+		Files.createDirectories(this.path.getParent());
+		FileChannel lock = lock();
+		try {
+			open();
+		}
+		finally {
+			lock.close();
+		}
+		refresh();
+	}
+
+	/**
+	 * Sets whether a replaced file is noticed by its file key, where the
+	 * file system has them, which it is by default. Otherwise it is only
+	 * noticed by its generation, as where the file system has no keys.
+	 */
+	synchronized void setUseFileKeys(boolean useFileKeys) {
+		this.useFileKeys = useFileKeys;
+	}
+
+	/**
+	 * Returns the cached reply to a GET, or null if there isn't one.
+	 * @param resource The endpoint and resource.
+	 * @param variant The parameters and content type of the GET.
+	 */
+	synchronized CachedReply get(String resource, String variant) throws IOException {
+		refresh();
+		Map<String, Integer> variants = index.get(resource);
+		Integer offset = variants==null ? null : variants.get(variant);
+		return offset==null ? null : new CachedReply(map, offset);
+	}
+
+	/**
+	 * Caches the reply to a GET. A reply with a string too long to store,
+	 * or too big to survive compaction, isn't cached.
+	 * @return false if the reply wasn't cached.
+	 */
+	synchronized boolean put(String resource, String variant, XrapReply reply) throws IOException {
+		NameValuePair[] metadata = reply.metadata==null ? new NameValuePair[0] : reply.metadata;
+		byte[][] strings = { utf8(resource), utf8(variant), utf8(reply.etag), utf8(reply.contentType) };
+		long length = 4 + 1 + 8 + 4 + 4;
+		for (byte[] s : strings) {
+			if (s.length>MAX_STRING_LENGTH) return false;
+			length += 2 + s.length;
+		}
+		byte[][] names = new byte[metadata.length][];
+		for (int i=0; i<metadata.length; i++) {
+			names[i] = utf8(metadata[i].getName());
+			if (names[i].length>MAX_STRING_LENGTH) return false;
+			length += 2 + names[i].length + 4 + metadata[i].getRawValue().length;
+		}
+		byte[] body = reply.body==null ? new byte[0] : reply.body;
+		length += body.length;
+		if (HEADER_LENGTH + length > maxBytes/2) return false;
+
+		ByteBuffer record = ByteBuffer.allocate((int)length);
+		record.putInt((int)length).put(REPLY);
+		putString(record, strings[0]);
+		putString(record, strings[1]);
+		record.putLong(reply.dateModified);
+		putString(record, strings[2]);
+		putString(record, strings[3]);
+		record.putInt(metadata.length);
+		for (int i=0; i<metadata.length; i++) {
+			putString(record, names[i]);
+			record.putInt(metadata[i].getRawValue().length).put(metadata[i].getRawValue());
+		}
+		record.putInt(body.length).put(body);
+		record.flip();
+		append(record);
+		return true;
+	}
+
+	/**
+	 * Forgets every cached reply for the given endpoint and resource.
+	 */
+	synchronized void invalidate(String resource) throws IOException {
+		refresh();
+		Map<String, Integer> variants = index.get(resource);
+		if (variants==null || variants.isEmpty()) return;
+		byte[] bytes = utf8(resource);
+		int length = 4 + 1 + 2 + bytes.length + 2;
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(length).put(INVALIDATE);
+		putString(record, bytes);
+		putString(record, new byte[0]);
+		record.flip();
+		append(record);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+		map = null;
+		index.clear();
+	}
+
+	private void append(ByteBuffer record) throws IOException {
+		FileChannel lock = lock();
+		locked = true;
+		try {
+			refresh();
+			long at = readEnd();
+			writeFully(channel, record, at);
+			// Only now can anyone see it
+			ByteBuffer newEnd = ByteBuffer.allocate(8);
+			newEnd.putLong(0, at + record.limit());
+			writeFully(channel, newEnd, END_OFFSET);
+			if (at + record.limit() > maxBytes) compact();
+		}
+		finally {
+			locked = false;
+			lock.close();
+		}
+		refresh();
+	}
+
+	/**
+	 * Reopens the file if it has been replaced, and indexes any records
+	 * appended since it was last looked at.
+	 */
+	private void refresh() throws IOException {
+		if (replaced()) {
+			if (locked) {
+				open();
+			}
+			else {
+				FileChannel lock = lock();
+				try {
+					open();
+				}
+				finally {
+					lock.close();
+				}
+			}
+			map = null;
+			index = new HashMap<String, Map<String, Integer>>();
+			end = HEADER_LENGTH;
+		}
+		long newEnd = readEnd();
+		if (newEnd<=end) return;
+		map = channel.map(FileChannel.MapMode.READ_ONLY, 0, newEnd);
+		end = scan(map, end, newEnd, index);
+	}
+
+	/**
+	 * Copies the newest live records into a new file, which replaces
+	 * this one. Must hold the lock.
+	 */
+	private void compact() throws IOException {
+		long fileEnd = readEnd();
+		MappedByteBuffer all = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileEnd);
+		Map<String, Map<String, Integer>> live = new HashMap<String, Map<String, Integer>>();
+		scan(all, HEADER_LENGTH, fileEnd, live);
+		List<Integer> offsets = new ArrayList<Integer>();
+		for (Map<String, Integer> variants : live.values())
+			offsets.addAll(variants.values());
+		// Keep the newest, up to half the limit, leaving room to grow
+		Collections.sort(offsets, Collections.reverseOrder());
+		List<Integer> kept = new ArrayList<Integer>();
+		long size = HEADER_LENGTH;
+		for (int offset : offsets) {
+			int length = all.getInt(offset);
+			if (size + length > maxBytes/2) break;
+			size += length;
+			kept.add(offset);
+		}
+		Collections.reverse(kept);
+
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putInt(generation+1).putLong(size).flip();
+			writeFully(out, header, 0);
+			long at = HEADER_LENGTH;
+			for (int offset : kept) {
+				ByteBuffer record = all.duplicate();
+				record.limit(offset + all.getInt(offset)).position(offset);
+				at += writeFully(out, record, at);
+			}
+			out.force(false);
+		}
+		try {
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException ex) {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Indexes the records between two offsets.
+	 * @return The offset after the last whole record.
+	 */
+	private static long scan(ByteBuffer buffer, long from, long to, Map<String, Map<String, Integer>> index) {
+		int offset = (int)from;
+		while (offset + 5 <= to) {
+			int length = buffer.getInt(offset);
+			// Torn or corrupt, so ignore the rest
+			if (length<5 || offset + length > to) break;
+			ByteBuffer record = buffer.duplicate();
+			record.limit(offset + length).position(offset + 5);
+			String resource;
+			String variant;
+			try {
+				resource = getString(record);
+				variant = getString(record);
+			}
+			catch (BufferUnderflowException ex) {
+				// Its strings overrun it, so it is corrupt
+				break;
+			}
+			if (buffer.get(offset + 4)==INVALIDATE) {
+				index.remove(resource);
+			}
+			else {
+				Map<String, Integer> variants = index.get(resource);
+				if (variants==null) {
+					variants = new HashMap<String, Integer>();
+					index.put(resource, variants);
+				}
+				variants.put(variant, offset);
+			}
+			offset += length;
+		}
+		return offset;
+	}
+
+	/**
+	 * Waits for the lock shared by every process using the file.
+	 * @return The channel holding the lock, which releases it when closed.
+	 */
+	private FileChannel lock() throws IOException {
+		FileChannel lock = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			lock.lock();
+			return lock;
+		}
+		catch (IOException | RuntimeException ex) {
+			lock.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Opens the file, writing the header if it is new. Must hold the lock.
+	 */
+	private void open() throws IOException {
+		if (channel!=null) channel.close();
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+		if (channel.size()<HEADER_LENGTH) {
+			// A new file starts at a random generation, so that one deleted
+			// and created again isn't mistaken for the same file.
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putInt(ThreadLocalRandom.current().nextInt()).putLong(HEADER_LENGTH).flip();
+			writeFully(channel, header, 0);
+		}
+		else if (readEnd()<0) {
+			throw new IOException(String.format("%s isn't a cache file", path));
+		}
+		generation = readGeneration(channel);
+	}
+
+	/**
+	 * Returns true if the file at the path is no longer the one open.
+	 */
+	private boolean replaced() throws IOException {
+		try {
+			Object key = useFileKeys ? Files.readAttributes(path, BasicFileAttributes.class).fileKey() : null;
+			if (key!=null) return !key.equals(fileKey);
+			try (FileChannel current = FileChannel.open(path, StandardOpenOption.READ)) {
+				return readGeneration(current)!=generation;
+			}
+		}
+		catch (NoSuchFileException ex) {
+			// Moved away or deleted, so it will be created again
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the generation in the header, or -1 if there is no header.
+	 */
+	private static int readGeneration(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, GENERATION_OFFSET + buffer.position())<0) return -1;
+		}
+		return buffer.getInt(0);
+	}
+
+	/**
+	 * Returns the end of the records, or -1 if the header is bad.
+	 */
+	private long readEnd() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		if (channel.read(header, 0)<HEADER_LENGTH || header.getInt(0)!=MAGIC) return -1;
+		return Math.min(header.getLong(END_OFFSET), channel.size());
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int written = 0;
+		while (buffer.hasRemaining())
+			written += channel.write(buffer, position + written);
+		return written;
+	}
+
+	private static byte[] utf8(String s) {
+		return s==null ? new byte[0] : s.getBytes(utf8);
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] s) {
+		buffer.putShort((short)s.length).put(s);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getShort()&0xffff;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, utf8);
+	}
+
+	/**
+	 * A reply read from the cache file. Its body is a view of the mapped
+	 * file, not a copy.
+	 */
+	static final class CachedReply {
+		final long dateModified;
+		final String etag;
+		final String contentType;
+		final NameValuePair[] metadata;
+		final ByteBuffer body;
+
+		CachedReply(ByteBuffer map, int offset) {
+			ByteBuffer record = map.duplicate();
+			record.position(offset + 5);
+			getString(record);
+			getString(record);
+			dateModified = record.getLong();
+			String e = getString(record);
+			etag = e.isEmpty() ? null : e;
+			String c = getString(record);
+			contentType = c.isEmpty() ? null : c;
+			metadata = new NameValuePair[record.getInt()];
+			for (int i=0; i<metadata.length; i++) {
+				String name = getString(record);
+				byte[] value = new byte[record.getInt()];
+				record.get(value);
+				metadata[i] = new NameValuePair(name, value);
+			}
+			int length = record.getInt();
+			record.limit(record.position() + length);
+			body = record.slice().asReadOnlyBuffer();
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.wpl.xrapc.cli;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Paths;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -42,6 +43,14 @@ public class XrapClientShell {
 					.hasArg(true)
 					.type(Number.class)
 					.build());
+		
+		options.addOption(
+				Option.builder("c")
+					.longOpt("cache")
+					.desc("Cache replies to GET requests in a file, which can be shared between runs")
+					.argName("<FILE>")
+					.hasArg(true)
+					.build());
 		return options;
 	}
 	
@@ -49,6 +58,8 @@ public class XrapClientShell {
 	private int port;
 	private int timeoutSeconds;
 	private XrapClient client;
+	private String cacheFile;
+	private ResponseCacheFile cache;
 	
 	public XrapClientShell(String[] args) throws UsageException {
 		parseArgs(args);
@@ -80,6 +91,7 @@ public class XrapClientShell {
 			if (timeoutArg!=null) {
 				timeoutSeconds = timeoutArg.intValue();
 			}
+			cacheFile = cmd.getOptionValue("cache");
 		}
 		catch (ParseException ex) {
 			throw new UsageException(ex.getMessage());
@@ -90,6 +102,9 @@ public class XrapClientShell {
 		
 		ConsoleReader reader = new ConsoleReader();
 		try {
+			if (cacheFile!=null) {
+				cache = new ResponseCacheFile(Paths.get(cacheFile), ResponseCacheFile.DEFAULT_MAX_BYTES);
+			}
 			PrintWriter out = new PrintWriter(reader.getOutput());
 			reader.setPrompt("> ");
 			
@@ -122,6 +137,7 @@ public class XrapClientShell {
 		}
 		finally {
 			reader.shutdown();
+			if (cache!=null) cache.close();
 		}
 	}
 	
@@ -149,6 +165,7 @@ public class XrapClientShell {
 		if (resource==null) 
 			throw new UsageException(String.format("Must supply resource with '%s'", command.getName()));
 		command.setResource(resource);
+		command.setCache(cache);
 		
 		String item;
 		while ((item = tok.nextToken())!=null) {
@@ -2,6 +2,7 @@ package com.wpl.xrapc.cli;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -48,6 +49,7 @@ public class XrapClientTool {
 	private String host;
 	private int port;
 	private int timeoutSeconds=30;
+	private String cacheFile;
 	
 	
 	public XrapClientTool(String[] args) throws UsageException {
@@ -96,7 +98,7 @@ public class XrapClientTool {
 			if (timeoutArg!=null) {
 				timeoutSeconds = timeoutArg.intValue();
 			}
-			
+			cacheFile = cmd.getOptionValue("cache");
 			
 			return command;
 		}
@@ -143,7 +145,14 @@ public class XrapClientTool {
 		if (command.needsBody()) {
 			command.setBody(readBodyFromStdin());
 		}
-		command.run(client);
+		if (cacheFile==null) {
+			command.run(client);
+			return;
+		}
+		try (ResponseCacheFile cache = new ResponseCacheFile(Paths.get(cacheFile), ResponseCacheFile.DEFAULT_MAX_BYTES)) {
+			command.setCache(cache);
+			command.run(client);
+		}
 	}
 	
 	private byte[] readBodyFromStdin() throws IOException {
@@ -194,6 +203,14 @@ public class XrapClientTool {
 					.hasArg(true)
 					.type(Number.class)
 					.build());
+		
+		options.addOption(
+				Option.builder("c")
+					.longOpt("cache")
+					.desc("Cache replies to GET requests in a file, which can be shared between runs")
+					.argName("<FILE>")
+					.hasArg(true)
+					.build());
 		return options;
 	}
 	
@@ -0,0 +1,246 @@
+package com.wpl.xrapc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+	@Test
+	public void probeFailingAdmissionLetsAnotherThrough() throws Exception {
+		// Nothing listens here, so the first request holds the window until closed
+		XrapClient client = new XrapClient("tcp://127.0.0.1:1");
+		try {
+			client.setTimeout(30, TimeUnit.SECONDS);
+			client.setInFlightWindow(1, Long.MAX_VALUE, XrapClient.BackpressurePolicy.FAIL);
+			client.setCircuitBreaker(0.5, 1, 50, TimeUnit.MILLISECONDS);
+			client.sendAsync(new XrapGetRequest("/a"));
+
+			CircuitBreaker breaker = client.getCircuitBreakers().get(0);
+			breaker.recordFailure();
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+			Thread.sleep(100);
+
+			try {
+				client.sendAsync(new XrapGetRequest("/b"));
+				fail("Expected the in-flight window to be full");
+			}
+			catch (XrapException ex) {
+				assertEquals("In-flight window full", ex.getMessage());
+			}
+			assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+			assertTrue(breaker.allowRequest());
+		}
+		finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void serverErrorsOpenBreakerAndRequestsFailFast() throws Exception {
+		AtomicInteger status = new AtomicInteger(503);
+		try (FakeServer server = new FakeServer(replying(status))) {
+			XrapClient client = newClient(server.endpoint());
+			List<String> events = listen(client);
+			try {
+				CircuitBreaker breaker = client.getCircuitBreakers().get(0);
+				for (int i=0; i<3; i++)
+					assertEquals(503, client.send(new XrapGetRequest("/a")).statusCode);
+				// Too few requests yet, however many failed
+				assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+				assertEquals(1.0, breaker.getFailureRate(), 0);
+
+				assertEquals(503, client.send(new XrapGetRequest("/a")).statusCode);
+				assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+				assertEquals(1, breaker.getTimesOpened());
+				assertEquals(Arrays.asList("CLOSED->OPEN"), events);
+
+				try {
+					client.send(new XrapGetRequest("/a"));
+					fail("Expected the breaker to turn the request away");
+				}
+				catch (XrapException ex) {
+					assertEquals("Circuit open", ex.getMessage());
+				}
+				assertEquals(1, breaker.getRejectedRequests());
+			}
+			finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void failureRateBelowThresholdKeepsBreakerClosed() throws Exception {
+		AtomicInteger status = new AtomicInteger(200);
+		try (FakeServer server = new FakeServer(replying(status))) {
+			XrapClient client = newClient(server.endpoint());
+			try {
+				CircuitBreaker breaker = client.getCircuitBreakers().get(0);
+				client.send(new XrapGetRequest("/a"));
+				// Errors other than 5xx are the endpoint working
+				status.set(404);
+				client.send(new XrapGetRequest("/a"));
+				client.send(new XrapGetRequest("/a"));
+				status.set(500);
+				client.send(new XrapGetRequest("/a"));
+
+				assertEquals(0.25, breaker.getFailureRate(), 0);
+				assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+				assertEquals(0, breaker.getTimesOpened());
+			}
+			finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void timeoutsOpenBreaker() throws Exception {
+		try (FakeServer server = new FakeServer(request -> null)) {
+			XrapClient client = newClient(server.endpoint());
+			try {
+				client.setCircuitBreaker(0.5, 2, 100, TimeUnit.MILLISECONDS);
+				CircuitBreaker breaker = client.getCircuitBreakers().get(0);
+				for (int i=0; i<2; i++) {
+					try {
+						client.send(new XrapGetRequest("/a"));
+						fail("Expected a timeout");
+					}
+					catch (XrapTimeoutException ex) {
+					}
+				}
+				XrapReactorTest.await(() -> breaker.getState()==CircuitBreaker.State.OPEN);
+			}
+			finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void successfulProbeClosesBreaker() throws Exception {
+		AtomicInteger status = new AtomicInteger(503);
+		try (FakeServer server = new FakeServer(replying(status))) {
+			XrapClient client = newClient(server.endpoint());
+			List<String> events = listen(client);
+			try {
+				CircuitBreaker breaker = client.getCircuitBreakers().get(0);
+				for (int i=0; i<4; i++)
+					client.send(new XrapGetRequest("/a"));
+				assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+				status.set(200);
+				Thread.sleep(150);
+				assertEquals(200, client.send(new XrapGetRequest("/a")).statusCode);
+				assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+				// The failures that opened it are forgotten
+				assertEquals(0, breaker.getFailureRate(), 0);
+				assertEquals(Arrays.asList("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"), events);
+			}
+			finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void failedProbeReopensBreaker() throws Exception {
+		AtomicInteger status = new AtomicInteger(503);
+		try (FakeServer server = new FakeServer(replying(status))) {
+			XrapClient client = newClient(server.endpoint());
+			List<String> events = listen(client);
+			try {
+				CircuitBreaker breaker = client.getCircuitBreakers().get(0);
+				for (int i=0; i<4; i++)
+					client.send(new XrapGetRequest("/a"));
+
+				Thread.sleep(150);
+				assertEquals(503, client.send(new XrapGetRequest("/a")).statusCode);
+				assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+				assertEquals(2, breaker.getTimesOpened());
+				assertEquals(Arrays.asList("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->OPEN"), events);
+			}
+			finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void halfOpenBreakerLetsOneProbeThrough() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("e", 0.5, 1, TimeUnit.MILLISECONDS.toNanos(20),
+				Collections.<CircuitBreaker.Listener>emptyList());
+		breaker.recordFailure();
+		assertFalse(breaker.allowRequest());
+		Thread.sleep(40);
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+		assertEquals(2, breaker.getRejectedRequests());
+		// A cancelled probe makes way for another
+		breaker.recordCancelled();
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void openBreakerReroutesToAnotherEndpoint() throws Exception {
+		try (FakeServer bad = new FakeServer(replying(new AtomicInteger(503)));
+				FakeServer good = new FakeServer(replying(new AtomicInteger(200)))) {
+			XrapClient client = new XrapClient(Arrays.asList(bad.endpoint(), good.endpoint()));
+			try {
+				client.setStripePolicy(XrapClient.StripePolicy.ROUND_ROBIN);
+				client.setCircuitBreaker(0.5, 2, 10, TimeUnit.SECONDS);
+				client.awaitConnected(5, TimeUnit.SECONDS);
+				for (int i=0; i<4; i++)
+					client.send(new XrapGetRequest("/a"));
+				CircuitBreaker badBreaker = breakerOf(client, bad.endpoint());
+				assertEquals(CircuitBreaker.State.OPEN, badBreaker.getState());
+
+				for (int i=0; i<10; i++)
+					assertEquals(200, client.send(new XrapGetRequest("/a")).statusCode);
+				assertEquals(CircuitBreaker.State.CLOSED, breakerOf(client, good.endpoint()).getState());
+			}
+			finally {
+				client.close();
+			}
+		}
+	}
+
+	private static XrapClient newClient(String endpoint) {
+		XrapClient client = new XrapClient(endpoint);
+		client.setTimeout(200, TimeUnit.MILLISECONDS);
+		client.setCircuitBreaker(0.5, 4, 100, TimeUnit.MILLISECONDS);
+		return client;
+	}
+
+	private static Function<byte[], byte[]> replying(AtomicInteger status) {
+		return request -> {
+			int id = Replies.requestId(request);
+			int s = status.get();
+			return s==200 ? Replies.getOk(id, null, new byte[0]) : Replies.error(id, s, "Error");
+		};
+	}
+
+	private static List<String> listen(XrapClient client) {
+		List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		client.addCircuitBreakerListener((breaker, from, to) -> events.add(from + "->" + to));
+		return events;
+	}
+
+	private static CircuitBreaker breakerOf(XrapClient client, String endpoint) {
+		for (CircuitBreaker b : client.getCircuitBreakers()) {
+			if (endpoint.equals(b.getEndpoint())) return b;
+		}
+		throw new AssertionError("No breaker for " + endpoint);
+	}
+}
@@ -0,0 +1,60 @@
+package com.wpl.xrapc;
+
+import java.util.function.Function;
+
+import org.zeromq.ZMQ;
+
+/**
+ * An XRAP server for tests, which answers each request with whatever its
+ * handler returns, or not at all if that is null.
+ */
+final class FakeServer implements AutoCloseable {
+	private final ZMQ.Context context = ZMQ.context(1);
+	private final ZMQ.Socket sock = context.socket(ZMQ.ROUTER);
+	private final String endpoint;
+	private final Thread thread;
+	private volatile Function<byte[], byte[]> handler;
+	private volatile boolean running = true;
+
+	FakeServer(Function<byte[], byte[]> handler) {
+		this.handler = handler;
+		sock.setReceiveTimeOut(20);
+		endpoint = "tcp://127.0.0.1:" + sock.bindToRandomPort("tcp://127.0.0.1");
+		thread = new Thread(this::serve, "fake-xrap-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	String endpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Changes how requests received from now on are answered.
+	 */
+	void setHandler(Function<byte[], byte[]> handler) {
+		this.handler = handler;
+	}
+
+	private void serve() {
+		while (running) {
+			byte[] identity = sock.recv();
+			if (identity==null) continue;
+			byte[] frame = sock.recv();
+			if (frame.length==0) frame = sock.recv();
+			byte[] reply = handler.apply(frame);
+			if (reply==null) continue;
+			sock.send(identity, ZMQ.SNDMORE);
+			sock.send(new byte[0], ZMQ.SNDMORE);
+			sock.send(reply, 0);
+		}
+		sock.close();
+		context.term();
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		running = false;
+		thread.join();
+	}
+}
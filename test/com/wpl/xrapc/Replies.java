@@ -0,0 +1,82 @@
+package com.wpl.xrapc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the reply frames a server would send, for tests.
+ */
+final class Replies {
+	private Replies() {}
+
+	/**
+	 * Returns the ID of the request in a request frame, which a reply to
+	 * it must carry.
+	 */
+	static int requestId(byte[] request) {
+		return ReplyDecoder.peekRequestId(request);
+	}
+
+	/**
+	 * A "200 OK" reply to a GET, with an empty content type and metadata.
+	 */
+	static byte[] getOk(int requestId, String etag, byte[] body) {
+		return getOk(requestId, etag, body, new String[0]);
+	}
+
+	/**
+	 * A "200 OK" reply to a GET, with an empty content type.
+	 * @param metadata Alternate names and values.
+	 */
+	static byte[] getOk(int requestId, String etag, byte[] body, String... metadata) {
+		byte[] etagBytes = etag==null ? new byte[0] : etag.getBytes(StandardCharsets.UTF_8);
+		int metadataSize = 0;
+		for (String s : metadata)
+			metadataSize += 4 + s.getBytes(StandardCharsets.UTF_8).length;
+		ByteBuffer buffer = ByteBuffer.allocate(32 + etagBytes.length + body.length + metadataSize);
+		header(buffer, Constants.GET_OK_COMMAND, requestId);
+		buffer.putShort((short)200);
+		buffer.put((byte)etagBytes.length);
+		buffer.put(etagBytes);
+		buffer.putLong(0);
+		buffer.put((byte)0);
+		buffer.putInt(body.length);
+		buffer.put(body);
+		buffer.putInt(metadata.length/2);
+		for (int i=0; i<metadata.length; i+=2) {
+			byte[] name = metadata[i].getBytes(StandardCharsets.UTF_8);
+			byte[] value = metadata[i+1].getBytes(StandardCharsets.UTF_8);
+			buffer.put((byte)name.length);
+			buffer.put(name);
+			buffer.putInt(value.length);
+			buffer.put(value);
+		}
+		return toArray(buffer);
+	}
+
+	/**
+	 * An error reply with the given status.
+	 */
+	static byte[] error(int requestId, int status, String text) {
+		byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(16 + textBytes.length);
+		header(buffer, Constants.ERROR_COMMAND, requestId);
+		buffer.putShort((short)status);
+		buffer.put((byte)textBytes.length);
+		buffer.put(textBytes);
+		return toArray(buffer);
+	}
+
+	private static void header(ByteBuffer buffer, int command, int requestId) {
+		buffer.putShort(Constants.SIGNATURE);
+		buffer.put((byte)command);
+		buffer.putInt(requestId);
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] frame = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(frame);
+		return frame;
+	}
+}
@@ -0,0 +1,98 @@
+package com.wpl.xrapc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class XrapPageIteratorTest {
+	private static final int PAGES = 4;
+
+	@Test
+	public void cursorPagesArriveInOrder() throws Exception {
+		AtomicInteger received = new AtomicInteger();
+		try (FakeServer server = new FakeServer(request -> page(request, received.getAndIncrement()))) {
+			XrapClient client = new XrapClient(server.endpoint());
+			try {
+				client.enableReactor();
+				assertEquals(pageBodies(), bodies(new XrapPageIterator(client, new XrapGetRequest("/items"),
+						XrapPageIterator.byCursor("cursor", "Next-Cursor"), 2)));
+			}
+			finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void cursorPageCompletingUnderIteratorMonitorIsStillFetchedAhead() throws Exception {
+		AtomicInteger received = new AtomicInteger();
+		try (FakeServer server = new FakeServer(request -> page(request, received.getAndIncrement()))) {
+			// Every reply completes its page while the iterator's monitor
+			// is held, as it would be if the page completed while fill was
+			// registering the callback that waits for it.
+			AtomicReference<XrapPageIterator> iterator = new AtomicReference<XrapPageIterator>();
+			Executor holdingMonitor = task -> {
+				XrapPageIterator monitor;
+				synchronized (iterator) {
+					monitor = iterator.get();
+				}
+				synchronized (monitor) {
+					task.run();
+				}
+			};
+			XrapClient client = new XrapClient(server.endpoint());
+			try {
+				client.enableReactor(holdingMonitor);
+				synchronized (iterator) {
+					// Held until the iterator is known, so the first page can't complete before
+					iterator.set(new XrapPageIterator(client, new XrapGetRequest("/items"),
+							XrapPageIterator.byCursor("cursor", "Next-Cursor"), 2));
+				}
+				XrapPageIterator it = iterator.get();
+				it.next();
+				// The second page is requested as soon as the first arrives,
+				// without waiting for the caller to ask for it.
+				XrapReactorTest.await(() -> received.get()>=2);
+				assertEquals(pageBodies().subList(1, PAGES), bodies(it));
+			}
+			finally {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the nth page, with the cursor of the next one, or an empty
+	 * page once there are no more.
+	 */
+	private static byte[] page(byte[] request, int n) {
+		int id = Replies.requestId(request);
+		if (n>=PAGES) return Replies.getOk(id, null, new byte[0]);
+		byte[] body = ("page " + n).getBytes(StandardCharsets.UTF_8);
+		if (n==PAGES-1) return Replies.getOk(id, null, body);
+		return Replies.getOk(id, null, body, "Next-Cursor", "c" + (n+1));
+	}
+
+	private static List<String> pageBodies() {
+		List<String> result = new ArrayList<String>();
+		for (int i=0; i<PAGES; i++)
+			result.add("page " + i);
+		return result;
+	}
+
+	private static List<String> bodies(XrapPageIterator it) {
+		List<String> result = new ArrayList<String>();
+		while (it.hasNext())
+			result.add(new String(it.next().body, StandardCharsets.UTF_8));
+		assertFalse(it.hasNext());
+		return result;
+	}
+}
@@ -0,0 +1,129 @@
+package com.wpl.xrapc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zeromq.ZMQ;
+
+public class XrapReactorTest {
+	private FakeServer server;
+	private ZMQ.Context context;
+	private ZMQ.Socket sock;
+	private XrapReactor reactor;
+
+	@Before
+	public void setUp() {
+		// Never replies, so every request sent times out
+		server = new FakeServer(request -> null);
+		context = ZMQ.context(1);
+		sock = context.socket(ZMQ.DEALER);
+		sock.connect(server.endpoint());
+		reactor = new XrapReactor(sock, server.endpoint(), null, Runnable::run, 16, HashedWheelTimer.shared());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		reactor.close();
+		sock.close();
+		context.term();
+		server.close();
+	}
+
+	@Test
+	public void timeoutBeforeSendingIsNotAFailure() throws Exception {
+		CircuitBreaker breaker = breaker(2, TimeUnit.SECONDS.toNanos(10));
+		reactor.setBreaker(breaker);
+
+		// Held back, as by the in-flight window, so never submitted
+		assertTimesOut(reactor.newRequest(get(), get().encode(), deadline(50), XrapReactor.REPLY).future);
+		XrapReactor.PendingRequest<XrapReply> sent = 
+				reactor.newRequest(get(), get().encode(), deadline(50), XrapReactor.REPLY);
+		reactor.submit(sent);
+		assertTimesOut(sent.future);
+
+		// Both timed out, but only the one sent counts, which isn't enough to open it
+		await(() -> breaker.getFailureRate()>0);
+		assertEquals(1.0, breaker.getFailureRate(), 0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void sentTimeoutOpensBreaker() throws Exception {
+		CircuitBreaker breaker = breaker(1, TimeUnit.SECONDS.toNanos(10));
+		reactor.setBreaker(breaker);
+
+		XrapReactor.PendingRequest<XrapReply> sent = 
+				reactor.newRequest(get(), get().encode(), deadline(50), XrapReactor.REPLY);
+		reactor.submit(sent);
+		assertTimesOut(sent.future);
+
+		await(() -> breaker.getState()==CircuitBreaker.State.OPEN);
+		assertEquals(1, breaker.getTimesOpened());
+	}
+
+	@Test
+	public void probeTimingOutBeforeSendingLetsAnotherThrough() throws Exception {
+		CircuitBreaker breaker = breaker(1, TimeUnit.MILLISECONDS.toNanos(20));
+		reactor.setBreaker(breaker);
+		breaker.recordFailure();
+		Thread.sleep(40);
+
+		assertTrue(reactor.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(reactor.allowRequest());
+		// The probe is held back, and times out without being sent
+		assertTimesOut(reactor.newRequest(get(), get().encode(), deadline(50), XrapReactor.REPLY).future);
+
+		await(reactor::allowRequest);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertEquals(1, breaker.getTimesOpened());
+	}
+
+	private CircuitBreaker breaker(int minRequests, long openNanos) {
+		return new CircuitBreaker(server.endpoint(), 0.5, minRequests, openNanos, 
+				Collections.<CircuitBreaker.Listener>emptyList());
+	}
+
+	private static XrapGetRequest get() {
+		return new XrapGetRequest("/a");
+	}
+
+	private static long deadline(long millis) {
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	private static void assertTimesOut(CompletableFuture<?> future) throws InterruptedException {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Expected a timeout");
+		}
+		catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof XrapTimeoutException);
+		}
+		catch (java.util.concurrent.TimeoutException ex) {
+			fail("The request's deadline never passed");
+		}
+	}
+
+	/**
+	 * Waits for something the reactor thread does after completing a future.
+	 */
+	static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() - deadline >= 0) fail("Timed out waiting");
+			Thread.sleep(5);
+		}
+	}
+}
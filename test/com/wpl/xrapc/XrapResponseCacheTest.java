@@ -0,0 +1,56 @@
+package com.wpl.xrapc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class XrapResponseCacheTest {
+	@Test
+	public void invalidatingAnotherResourceStillCachesReply() throws Exception {
+		XrapResponseCache cache = new XrapResponseCache(1<<20);
+		XrapRequest request = new XrapGetRequest("/b");
+		XrapResponseCache.Lookup lookup = cache.lookup(request, false);
+
+		// A write to /a while the GET for /b is in flight
+		cache.invalidate("/a");
+		lookup.decoder(XrapReactor.FRAME).decode(request, getOk("\"v1\""));
+		assertEquals(1, cache.getEntryCount());
+	}
+
+	@Test
+	public void invalidatingSameResourceDropsReply() throws Exception {
+		XrapResponseCache cache = new XrapResponseCache(1<<20);
+		XrapRequest request = new XrapGetRequest("/b");
+		XrapResponseCache.Lookup lookup = cache.lookup(request, false);
+
+		cache.invalidate("/b");
+		lookup.decoder(XrapReactor.FRAME).decode(request, getOk("\"v1\""));
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	@Test
+	public void writeSentWithSendAllDropsCachedReply() throws Exception {
+		XrapResponseCache cache = new XrapResponseCache(1<<20);
+		XrapRequest request = new XrapGetRequest("/b");
+		cache.lookup(request, false).decoder(XrapReactor.FRAME).decode(request, getOk("\"v1\""));
+		assertEquals(1, cache.getEntryCount());
+
+		// Nothing listens here, but the PUT invalidates as it is sent
+		XrapClient client = new XrapClient("tcp://127.0.0.1:1");
+		try {
+			client.enableReactor();
+			client.setResponseCache(cache);
+			client.sendAll(Collections.singletonList(new XrapPutRequest("/b")));
+			assertEquals(0, cache.getEntryCount());
+		}
+		finally {
+			client.close();
+		}
+	}
+
+	private static byte[] getOk(String etag) {
+		return Replies.getOk(1, etag, new byte[0]);
+	}
+}
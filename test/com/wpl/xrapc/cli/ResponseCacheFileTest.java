@@ -0,0 +1,255 @@
+package com.wpl.xrapc.cli;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.wpl.xrapc.NameValuePair;
+import com.wpl.xrapc.XrapReply;
+
+public class ResponseCacheFileTest {
+	private static final int HEADER_LENGTH = 16;
+	private static final int END_OFFSET = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path path;
+	private ResponseCacheFile cache;
+
+	@Before
+	public void setUp() throws IOException {
+		path = folder.getRoot().toPath().resolve("cache");
+		cache = new ResponseCacheFile(path, ResponseCacheFile.DEFAULT_MAX_BYTES);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cache.close();
+	}
+
+	@Test
+	public void storesReplies() throws IOException {
+		XrapReply reply = reply("\"v1\"", "hello");
+		reply.dateModified = 1234;
+		reply.contentType = "text/plain";
+		reply.metadata = new NameValuePair[] { new NameValuePair("Owner", "tomq") };
+		assertTrue(cache.put("tcp://a/r", "", reply));
+
+		ResponseCacheFile.CachedReply cached = cache.get("tcp://a/r", "");
+		assertEquals("\"v1\"", cached.etag);
+		assertEquals(1234, cached.dateModified);
+		assertEquals("text/plain", cached.contentType);
+		assertEquals("Owner", cached.metadata[0].getName());
+		assertEquals("tomq", cached.metadata[0].getStringValue());
+		assertEquals("hello", body(cached));
+		assertTrue(cached.body.isReadOnly());
+		assertNull(cache.get("tcp://a/r", "limit=1"));
+		assertNull(cache.get("tcp://a/other", ""));
+	}
+
+	@Test
+	public void latestReplyWins() throws IOException {
+		cache.put("tcp://a/r", "", reply("\"v1\"", "one"));
+		cache.put("tcp://a/r", "", reply("\"v2\"", "two"));
+		assertEquals("two", body(cache.get("tcp://a/r", "")));
+
+		try (ResponseCacheFile other = new ResponseCacheFile(path, ResponseCacheFile.DEFAULT_MAX_BYTES)) {
+			assertEquals("\"v2\"", other.get("tcp://a/r", "").etag);
+		}
+	}
+
+	@Test
+	public void anotherProcessSeesAppendedReplies() throws IOException {
+		try (ResponseCacheFile other = new ResponseCacheFile(path, ResponseCacheFile.DEFAULT_MAX_BYTES)) {
+			assertNull(other.get("tcp://a/r", ""));
+			cache.put("tcp://a/r", "", reply("\"v1\"", "one"));
+			assertEquals("one", body(other.get("tcp://a/r", "")));
+		}
+	}
+
+	@Test
+	public void invalidateForgetsEveryVariant() throws IOException {
+		cache.put("tcp://a/r", "", reply("\"v1\"", "one"));
+		cache.put("tcp://a/r", "limit=1", reply("\"v1\"", "one"));
+		cache.put("tcp://a/s", "", reply("\"v1\"", "other"));
+		try (ResponseCacheFile other = new ResponseCacheFile(path, ResponseCacheFile.DEFAULT_MAX_BYTES)) {
+			other.invalidate("tcp://a/r");
+		}
+		assertNull(cache.get("tcp://a/r", ""));
+		assertNull(cache.get("tcp://a/r", "limit=1"));
+		assertEquals("other", body(cache.get("tcp://a/s", "")));
+
+		// Only what came before the invalidation is forgotten
+		cache.put("tcp://a/r", "", reply("\"v2\"", "two"));
+		try (ResponseCacheFile other = new ResponseCacheFile(path, ResponseCacheFile.DEFAULT_MAX_BYTES)) {
+			assertEquals("two", body(other.get("tcp://a/r", "")));
+			assertNull(other.get("tcp://a/r", "limit=1"));
+		}
+	}
+
+	@Test
+	public void invalidatingNothingAppendsNothing() throws IOException {
+		long size = Files.size(path);
+		cache.invalidate("tcp://a/r");
+		assertEquals(size, Files.size(path));
+	}
+
+	@Test
+	public void tornRecordIsIgnored() throws IOException {
+		cache.put("tcp://a/r", "", reply("\"v1\"", "one"));
+		long end = readEnd();
+		// A record whose length runs past the end, as if the writer died
+		// after publishing the end but before writing the whole record
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			ByteBuffer torn = ByteBuffer.allocate(9);
+			torn.putInt(1000).put((byte)1).putShort((short)2).put((byte)'x').put((byte)'y').flip();
+			channel.write(torn, end);
+			writeEnd(channel, end + 9);
+		}
+		try (ResponseCacheFile other = new ResponseCacheFile(path, ResponseCacheFile.DEFAULT_MAX_BYTES)) {
+			assertEquals("one", body(other.get("tcp://a/r", "")));
+			assertNull(other.get("xy", ""));
+		}
+	}
+
+	@Test
+	public void recordPastPublishedEndIsInvisible() throws IOException {
+		cache.put("tcp://a/r", "", reply("\"v1\"", "one"));
+		long end = readEnd();
+		try (ResponseCacheFile other = new ResponseCacheFile(path, ResponseCacheFile.DEFAULT_MAX_BYTES)) {
+			other.put("tcp://a/r", "", reply("\"v2\"", "two"));
+		}
+		// Move the end back, as if the second record's writer died before publishing it
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			writeEnd(channel, end);
+		}
+		try (ResponseCacheFile other = new ResponseCacheFile(path, ResponseCacheFile.DEFAULT_MAX_BYTES)) {
+			assertEquals("one", body(other.get("tcp://a/r", "")));
+		}
+	}
+
+	@Test
+	public void compactionKeepsNewestReplies() throws IOException {
+		cache.close();
+		long maxBytes = 4096;
+		cache = new ResponseCacheFile(path, maxBytes);
+		int generation = readGeneration();
+		for (int i=0; i<100; i++)
+			cache.put("tcp://a/r" + i, "", reply("\"v1\"", pad(i)));
+		// Rewritten over and over, so only its latest reply is live
+		cache.put("tcp://a/r99", "", reply("\"v2\"", "latest"));
+
+		assertNotEquals(generation, readGeneration());
+		assertTrue(Files.size(path) <= maxBytes);
+		assertNull(cache.get("tcp://a/r0", ""));
+		assertEquals("latest", body(cache.get("tcp://a/r99", "")));
+		assertEquals(pad(98), body(cache.get("tcp://a/r98", "")));
+		try (ResponseCacheFile other = new ResponseCacheFile(path, maxBytes)) {
+			assertNull(other.get("tcp://a/r0", ""));
+			assertEquals("latest", body(other.get("tcp://a/r99", "")));
+		}
+		assertFalse(Files.exists(path.resolveSibling("cache.tmp")));
+	}
+
+	@Test
+	public void replacedFileIsNoticedByFileKey() throws IOException {
+		replacedFileIsNoticed(true);
+	}
+
+	@Test
+	public void replacedFileIsNoticedByGeneration() throws IOException {
+		replacedFileIsNoticed(false);
+	}
+
+	private void replacedFileIsNoticed(boolean useFileKeys) throws IOException {
+		cache.close();
+		long maxBytes = 4096;
+		cache = new ResponseCacheFile(path, maxBytes);
+		cache.setUseFileKeys(useFileKeys);
+		cache.put("tcp://a/first", "", reply("\"v1\"", "first"));
+		assertEquals("first", body(cache.get("tcp://a/first", "")));
+
+		// Another process fills the file until it is compacted, then adds more
+		int generation = readGeneration();
+		try (ResponseCacheFile other = new ResponseCacheFile(path, maxBytes)) {
+			for (int i=0; readGeneration()==generation; i++)
+				other.put("tcp://a/r" + i, "", reply("\"v1\"", pad(i)));
+			other.put("tcp://a/late", "", reply("\"v1\"", "late"));
+		}
+		assertEquals("late", body(cache.get("tcp://a/late", "")));
+		assertNull(cache.get("tcp://a/first", ""));
+
+		// And its own appends go to the new file
+		cache.put("tcp://a/mine", "", reply("\"v1\"", "mine"));
+		try (ResponseCacheFile other = new ResponseCacheFile(path, maxBytes)) {
+			assertEquals("mine", body(other.get("tcp://a/mine", "")));
+		}
+	}
+
+	@Test
+	public void deletedFileIsCreatedAgain() throws IOException {
+		cache.put("tcp://a/r", "", reply("\"v1\"", "one"));
+		Files.delete(path);
+		assertNull(cache.get("tcp://a/r", ""));
+		cache.put("tcp://a/r", "", reply("\"v2\"", "two"));
+		try (ResponseCacheFile other = new ResponseCacheFile(path, ResponseCacheFile.DEFAULT_MAX_BYTES)) {
+			assertEquals("two", body(other.get("tcp://a/r", "")));
+		}
+	}
+
+	private static XrapReply reply(String etag, String body) {
+		XrapReply reply = new XrapReply();
+		reply.statusCode = 200;
+		reply.etag = etag;
+		reply.body = body.getBytes(StandardCharsets.UTF_8);
+		return reply;
+	}
+
+	private static String pad(int i) {
+		StringBuilder s = new StringBuilder("body " + i + " ");
+		while (s.length()<200)
+			s.append('.');
+		return s.toString();
+	}
+
+	private static String body(ResponseCacheFile.CachedReply cached) {
+		assertNotNull(cached);
+		byte[] bytes = new byte[cached.body.remaining()];
+		cached.body.duplicate().get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private int readGeneration() throws IOException {
+		return ByteBuffer.wrap(Files.readAllBytes(path), 4, 4).getInt();
+	}
+
+	private long readEnd() throws IOException {
+		return ByteBuffer.wrap(Files.readAllBytes(path), END_OFFSET, 8).getLong();
+	}
+
+	private static void writeEnd(FileChannel channel, long end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(0, end);
+		channel.write(buffer, END_OFFSET);
+		assertTrue(end>=HEADER_LENGTH);
+	}
+}